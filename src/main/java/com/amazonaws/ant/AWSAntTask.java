@@ -19,7 +19,13 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Task;
 
 import com.amazonaws.AmazonWebServiceClient;
@@ -28,14 +34,22 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 
 /**
  * Base class for AWS-related Ant tasks. Handles all shared logic.
  */
 public abstract class AWSAntTask extends Task {
 
-    private static final String CLIENT_CACHE_REFERENCE = "clientCache";
+    static final String CLIENT_CACHE_REFERENCE = "clientCache";
+    private static final String TRANSFER_MANAGER_CACHE_REFERENCE = "transferManagerCache";
     private static final String USER_AGENT_PREFIX = "AWS Ant Tasks/";
+    /**
+     * The number of threads a TransferManager uses by default.
+     */
+    private static final int DEFAULT_TRANSFER_THREADS = 10;
     protected String awsAccessKeyId;
     protected String awsSecretKey;
     protected String awsRegion;
@@ -77,28 +91,98 @@ public abstract class AWSAntTask extends Task {
     @SuppressWarnings("unchecked")
     public <T extends AmazonWebServiceClient> T getOrCreateClient(
             Class<T> clientClass) {
-        if(getProject().getReference(CLIENT_CACHE_REFERENCE) == null) {
-            Map<List<String>, Object> cache = new HashMap<List<String>, Object>();
-            getProject().addReference(CLIENT_CACHE_REFERENCE, cache);
-        }
-        Map<List<String>, Object> cache = getProject().getReference(CLIENT_CACHE_REFERENCE);
-        
-        List<String> key = Arrays.asList(clientClass.getName(), this.awsAccessKeyId, this.awsSecretKey, this.awsRegion);
-        
-        T client = (T) cache.get(key);
-        if(client == null) {
-            T newClient = createClient(clientClass);
-            Region region = RegionUtils.getRegion(this.awsRegion);
-            if(region != null) {
-                newClient.setRegion(region);
+        // Tasks nested in containers can run on several threads at once
+        synchronized (getProject()) {
+            if(getProject().getReference(CLIENT_CACHE_REFERENCE) == null) {
+                Map<List<String>, Object> cache = new HashMap<List<String>, Object>();
+                getProject().addReference(CLIENT_CACHE_REFERENCE, cache);
+            }
+            Map<List<String>, Object> cache = getProject().getReference(CLIENT_CACHE_REFERENCE);
+            
+            List<String> key = Arrays.asList(clientClass.getName(), this.awsAccessKeyId, this.awsSecretKey, this.awsRegion);
+            
+            T client = (T) cache.get(key);
+            if(client == null) {
+                T newClient = createClient(clientClass);
+                Region region = RegionUtils.getRegion(this.awsRegion);
+                if(region != null) {
+                    newClient.setRegion(region);
+                }
+                cache.put(key, newClient);
+                return newClient;
+            } else {
+                return client;
             }
-            cache.put(key, newClient);
-            return newClient;
-        } else {
-            return client;
         }
     }
     
+    /**
+     * Returns a TransferManager shared by every task in this project that uses
+     * the same credentials, region and transfer settings, so that its thread
+     * pool is only started once per build. It uses the S3 client from
+     * {@link #getOrCreateClient(Class)}, and is shut down when the build
+     * finishes. Callers must not shut it down themselves.
+     * 
+     * @param uploadThreads
+     *            The number of threads to transfer with, or null for the
+     *            TransferManager default of 10
+     * @param multipartUploadThreshold
+     *            The size in bytes above which uploads are split into parts,
+     *            or null for the TransferManager default
+     * @param minimumUploadPartSize
+     *            The minimum size in bytes of each part of a multipart upload,
+     *            or null for the TransferManager default
+     * @return The shared TransferManager for these settings
+     */
+    @SuppressWarnings("unchecked")
+    public TransferManager getOrCreateTransferManager(Integer uploadThreads,
+            Long multipartUploadThreshold, Long minimumUploadPartSize) {
+        synchronized (getProject()) {
+            if (getProject().getReference(TRANSFER_MANAGER_CACHE_REFERENCE) == null) {
+                Map<List<Object>, TransferManager> cache = new HashMap<List<Object>, TransferManager>();
+                getProject().addReference(TRANSFER_MANAGER_CACHE_REFERENCE, cache);
+                getProject().addBuildListener(new TransferManagerShutdownListener(cache));
+            }
+            Map<List<Object>, TransferManager> cache = getProject().getReference(
+                    TRANSFER_MANAGER_CACHE_REFERENCE);
+
+            List<Object> key = Arrays.<Object> asList(this.awsAccessKeyId,
+                    this.awsSecretKey, this.awsRegion, uploadThreads,
+                    multipartUploadThreshold, minimumUploadPartSize);
+
+            TransferManager transferManager = cache.get(key);
+            if (transferManager == null) {
+                AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+                transferManager = new TransferManager(client,
+                        newTransferThreadPool(uploadThreads == null
+                                ? DEFAULT_TRANSFER_THREADS : uploadThreads));
+                TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+                if (multipartUploadThreshold != null) {
+                    configuration.setMultipartUploadThreshold(multipartUploadThreshold);
+                }
+                if (minimumUploadPartSize != null) {
+                    configuration.setMinimumUploadPartSize(minimumUploadPartSize);
+                }
+                transferManager.setConfiguration(configuration);
+                cache.put(key, transferManager);
+            }
+            return transferManager;
+        }
+    }
+
+    /**
+     * Returns a pool of daemon threads for a TransferManager, so that a
+     * manager that is never shut down, such as one cached by a build which
+     * never fires buildFinished, does not keep the JVM alive.
+     * 
+     * @param threads
+     *            The number of threads in the pool
+     * @return A new fixed size thread pool
+     */
+    protected static ExecutorService newTransferThreadPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new TransferThreadFactory());
+    }
+
     /**
      * Returns a web service client of the specified class. Uses your
      * credentials if they are specified, otherwise the credentials used will be
@@ -129,4 +213,58 @@ public abstract class AWSAntTask extends Task {
                     + e.getMessage(), e);
         }
     }
+
+    /**
+     * Creates the daemon threads of {@link #newTransferThreadPool(int)}.
+     */
+    private static class TransferThreadFactory implements ThreadFactory {
+        private static final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ant-s3-transfer-"
+                    + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Shuts down every shared TransferManager in a project once its build
+     * finishes. The S3 clients are left open, since they belong to the client
+     * cache.
+     */
+    private static class TransferManagerShutdownListener implements BuildListener {
+        private final Map<List<Object>, TransferManager> cache;
+
+        TransferManagerShutdownListener(Map<List<Object>, TransferManager> cache) {
+            this.cache = cache;
+        }
+
+        public void buildFinished(BuildEvent event) {
+            synchronized (event.getProject()) {
+                for (TransferManager transferManager : cache.values()) {
+                    transferManager.shutdownNow(false);
+                }
+                cache.clear();
+            }
+        }
+
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void taskFinished(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
 }
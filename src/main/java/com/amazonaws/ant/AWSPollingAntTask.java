@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for tasks that wait for something in AWS to change. Handles the
+ * attributes that control how often to poll and for how long, and creates a
+ * {@link BackoffPoller} from them.
+ */
+public abstract class AWSPollingAntTask extends AWSAntTask {
+
+    protected int timeoutInMinutes;
+    protected long initialPollDelayInMs = BackoffPoller.DEFAULT_INITIAL_DELAY_IN_MS;
+    protected double pollBackoffMultiplier = BackoffPoller.DEFAULT_MULTIPLIER;
+    protected long maxPollDelayInMs = BackoffPoller.DEFAULT_MAX_DELAY_IN_MS;
+    protected double pollJitter = BackoffPoller.DEFAULT_JITTER;
+
+    /**
+     * @param defaultTimeoutInMinutes
+     *            How long to wait for if timeoutInMinutes is not set
+     */
+    protected AWSPollingAntTask(int defaultTimeoutInMinutes) {
+        this.timeoutInMinutes = defaultTimeoutInMinutes;
+    }
+
+    /**
+     * Set how long to wait before failing. Not required, the default depends
+     * on the task.
+     *
+     * @param timeoutInMinutes
+     *            The number of minutes to wait for.
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+    }
+
+    /**
+     * Set how long to wait before the first poll. Not required, default is
+     * 2000.
+     *
+     * @param initialPollDelayInMs
+     *            The delay before the first poll, in milliseconds.
+     */
+    public void setInitialPollDelayInMs(long initialPollDelayInMs) {
+        this.initialPollDelayInMs = initialPollDelayInMs;
+    }
+
+    /**
+     * Set what to multiply the delay between polls by after each poll. Not
+     * required, default is 1.5.
+     *
+     * @param pollBackoffMultiplier
+     *            The factor the delay grows by after each poll.
+     */
+    public void setPollBackoffMultiplier(double pollBackoffMultiplier) {
+        this.pollBackoffMultiplier = pollBackoffMultiplier;
+    }
+
+    /**
+     * Set the longest delay between two polls. Polls that are throttled back
+     * off straight to this delay. Not required, default is 30000.
+     *
+     * @param maxPollDelayInMs
+     *            The maximum delay between polls, in milliseconds.
+     */
+    public void setMaxPollDelayInMs(long maxPollDelayInMs) {
+        this.maxPollDelayInMs = maxPollDelayInMs;
+    }
+
+    /**
+     * Set the largest fraction by which each delay is randomly lengthened or
+     * shortened. Not required, default is 0.2.
+     *
+     * @param pollJitter
+     *            A fraction from 0 up to, but not including, 1.
+     */
+    public void setPollJitter(double pollJitter) {
+        this.pollJitter = pollJitter;
+    }
+
+    /**
+     * Appends a line to the errors for each polling attribute that is out of
+     * range.
+     *
+     * @return Whether all the polling attributes are valid
+     */
+    protected boolean checkPollingParams(StringBuilder errors) {
+        boolean valid = BackoffPoller.checkSettings(initialPollDelayInMs,
+                pollBackoffMultiplier, maxPollDelayInMs, pollJitter, errors);
+        if (timeoutInMinutes < 1) {
+            valid = false;
+            errors.append("timeoutInMinutes must be at least 1 \n");
+        }
+        return valid;
+    }
+
+    /**
+     * Returns a poller with the configured settings, whose timeout starts
+     * now.
+     */
+    protected BackoffPoller createPoller() {
+        return new BackoffPoller(initialPollDelayInMs, pollBackoffMultiplier,
+                maxPollDelayInMs, pollJitter,
+                TimeUnit.MINUTES.toMillis(timeoutInMinutes));
+    }
+}
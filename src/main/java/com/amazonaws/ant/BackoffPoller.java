@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.Random;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+
+/**
+ * Paces the polls of a task waiting for something in AWS to change. The
+ * first poll happens after a short initial delay, and each delay after that
+ * is the previous one times a multiplier, up to a maximum, but never less
+ * than {@link #MIN_DELAY_IN_MS}. Every delay is
+ * randomly varied by up to a fraction of itself, so that builds waiting on
+ * the same service do not poll in lockstep. A throttled poll backs off
+ * straight to the maximum delay. Polling stops once the timeout has passed.
+ *
+ * Typical use:
+ *
+ * <pre>
+ * BackoffPoller poller = new BackoffPoller(...);
+ * while (poller.awaitNextPoll()) {
+ *     try {
+ *         // describe the resource, return if done
+ *     } catch (AmazonServiceException e) {
+ *         if (!poller.backOffIfThrottled(e)) {
+ *             throw e;
+ *         }
+ *     }
+ * }
+ * // timed out
+ * </pre>
+ */
+public class BackoffPoller {
+
+    public static final long DEFAULT_INITIAL_DELAY_IN_MS = 2000;
+    public static final double DEFAULT_MULTIPLIER = 1.5;
+    public static final long DEFAULT_MAX_DELAY_IN_MS = 30000;
+    public static final double DEFAULT_JITTER = 0.2;
+    /**
+     * The shortest delay between two polls. Only the first poll can come
+     * sooner, if the initial delay is shorter.
+     */
+    public static final long MIN_DELAY_IN_MS = 1000;
+
+    private final long initialDelayInMs;
+    private final double multiplier;
+    private final long maxDelayInMs;
+    private final double jitter;
+    private final long deadline;
+    private final Random random = new Random();
+    private long delayInMs;
+
+    /**
+     * Creates a poller with the default delays that times out after the
+     * given number of milliseconds.
+     *
+     * @param timeoutInMs
+     *            How long to keep polling for, starting now
+     */
+    public BackoffPoller(long timeoutInMs) {
+        this(DEFAULT_INITIAL_DELAY_IN_MS, DEFAULT_MULTIPLIER,
+                DEFAULT_MAX_DELAY_IN_MS, DEFAULT_JITTER, timeoutInMs);
+    }
+
+    /**
+     * Creates a poller. The timeout starts now.
+     *
+     * @param initialDelayInMs
+     *            How long to wait before the first poll
+     * @param multiplier
+     *            What to multiply the delay by after each poll. Must be at
+     *            least 1.
+     * @param maxDelayInMs
+     *            The longest to wait between two polls, at least
+     *            {@link #MIN_DELAY_IN_MS}
+     * @param jitter
+     *            The largest fraction by which to randomly lengthen or
+     *            shorten each delay, between 0 and 1
+     * @param timeoutInMs
+     *            How long to keep polling for
+     */
+    public BackoffPoller(long initialDelayInMs, double multiplier,
+            long maxDelayInMs, double jitter, long timeoutInMs) {
+        this.initialDelayInMs = initialDelayInMs;
+        this.multiplier = multiplier;
+        this.maxDelayInMs = Math.max(MIN_DELAY_IN_MS,
+                Math.max(initialDelayInMs, maxDelayInMs));
+        this.jitter = jitter;
+        this.deadline = System.currentTimeMillis() + timeoutInMs;
+        this.delayInMs = initialDelayInMs;
+    }
+
+    /**
+     * Validates polling settings given as task attributes, appending a line
+     * to the errors for each one that is out of range.
+     *
+     * @return Whether all the settings are valid
+     */
+    public static boolean checkSettings(long initialDelayInMs,
+            double multiplier, long maxDelayInMs, double jitter,
+            StringBuilder errors) {
+        boolean valid = true;
+        if (initialDelayInMs < 0) {
+            valid = false;
+            errors.append("initialPollDelayInMs cannot be negative \n");
+        }
+        if (multiplier < 1) {
+            valid = false;
+            errors.append("pollBackoffMultiplier must be at least 1 \n");
+        }
+        if (maxDelayInMs < MIN_DELAY_IN_MS) {
+            valid = false;
+            errors.append("maxPollDelayInMs must be at least "
+                    + MIN_DELAY_IN_MS + " \n");
+        }
+        if (jitter < 0 || jitter >= 1) {
+            valid = false;
+            errors.append("pollJitter must be at least 0 and less than 1 \n");
+        }
+        return valid;
+    }
+
+    /**
+     * Sleeps until the next poll is due, and grows the delay for the one
+     * after. The last sleep is cut short at the timeout, so that one final
+     * poll happens right at the deadline.
+     *
+     * @return True if it is time to poll again, false if the timeout has
+     *         already passed
+     * @throws InterruptedException
+     *             If the thread is interrupted while sleeping
+     */
+    public boolean awaitNextPoll() throws InterruptedException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        Thread.sleep(Math.min(nextDelayInMs(), remaining));
+        return true;
+    }
+
+    /**
+     * Returns how long to sleep before the next poll, with jitter applied,
+     * and grows the delay for the one after.
+     */
+    long nextDelayInMs() {
+        long sleep = delayInMs;
+        if (jitter > 0) {
+            sleep += (long) (delayInMs * jitter * (2 * random.nextDouble() - 1));
+        }
+        // Rounding up, so that a short delay still grows
+        delayInMs = Math.min(maxDelayInMs, Math.max(MIN_DELAY_IN_MS,
+                (long) Math.ceil(delayInMs * multiplier)));
+        return Math.max(0, sleep);
+    }
+
+    /**
+     * Returns whether the given exception means the request was throttled,
+     * and if so backs off to the maximum delay before the next poll.
+     *
+     * @param e
+     *            An exception thrown by a poll
+     * @return Whether the poll was throttled and can be retried
+     */
+    public boolean backOffIfThrottled(AmazonServiceException e) {
+        if (!RetryUtils.isThrottlingException(e)) {
+            return false;
+        }
+        delayInMs = maxDelayInMs;
+        return true;
+    }
+
+    /**
+     * Starts the delays over from the initial delay, for when a change was
+     * just observed and another is likely soon.
+     */
+    public void reset() {
+        delayInMs = initialDelayInMs;
+    }
+
+    /**
+     * Returns how many milliseconds are left before the timeout.
+     */
+    public long getRemainingTimeInMs() {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
@@ -14,12 +14,16 @@
  */
 package com.amazonaws.ant.cloudformation;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.BackoffPoller;
 import com.amazonaws.ant.KeyValueNestedElement;
 import com.amazonaws.ant.SimpleNestedElement;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
@@ -28,6 +32,7 @@ import com.amazonaws.services.cloudformation.model.Capability;
 import com.amazonaws.services.cloudformation.model.OnFailure;
 import com.amazonaws.services.cloudformation.model.Parameter;
 import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.s3.AmazonS3Client;
 
 public class CreateStackTask extends AWSAntTask {
 
@@ -38,6 +43,9 @@ public class CreateStackTask extends AWSAntTask {
     private String stackPolicyURL;
     private String templateBody;
     private String templateURL;
+    private File templateFile;
+    private String templateBucket;
+    private String templateKeyPrefix = "";
 
     private List<String> capabilities = new LinkedList<String>();
     private List<String> notificationArns = new LinkedList<String>();
@@ -49,6 +57,9 @@ public class CreateStackTask extends AWSAntTask {
 
     private Integer timeoutInMinutes;
 
+    private File fingerprintFile;
+    private boolean force = false;
+
     /**
      * Allows you to add any number of nested preconfigured Capability elements.
      * Will warn you if the Capability is not supported by our model, but will
@@ -189,6 +200,43 @@ public class CreateStackTask extends AWSAntTask {
         this.templateURL = templateURL;
     }
 
+    /**
+     * Set a local file containing the template to use for this stack. A
+     * template of up to 51,200 bytes is passed as the template body. A larger
+     * one is uploaded to templateBucket under a key made from the SHA-256 of
+     * its content, unless an object with that key is already there, and
+     * passed as the template URL. If this is set, templateBody and templateURL
+     * cannot be set. Not required.
+     *
+     * @param templateFile
+     *            A file containing a template.
+     */
+    public void setTemplateFile(File templateFile) {
+        this.templateFile = templateFile;
+    }
+
+    /**
+     * Set the bucket to upload templates too large to pass inline to.
+     * Required if templateFile is larger than 51,200 bytes.
+     *
+     * @param templateBucket
+     *            The name of an existing bucket
+     */
+    public void setTemplateBucket(String templateBucket) {
+        this.templateBucket = templateBucket;
+    }
+
+    /**
+     * Set the prefix of the keys templates are uploaded to templateBucket
+     * under. Not required, default is no prefix.
+     *
+     * @param templateKeyPrefix
+     *            The key prefix, such as "templates/"
+     */
+    public void setTemplateKeyPrefix(String templateKeyPrefix) {
+        this.templateKeyPrefix = templateKeyPrefix;
+    }
+
     /**
      * Set whether to disable rollback if stack creation fails. If onFailure is
      * set, this cannot be set. If this is set, onFailure cannot be set. Not
@@ -225,6 +273,34 @@ public class CreateStackTask extends AWSAntTask {
         this.timeoutInMinutes = timeoutInMinutes;
     }
 
+    /**
+     * Set a file in which to record a fingerprint of the template, parameters,
+     * tags, capabilities, notification ARNs and stack policy each stack was
+     * created with. If the stack was already created with the same
+     * fingerprint, the task skips it without calling CloudFormation at all. A
+     * fingerprint is only recorded when waitForCreation is set and the stack
+     * reaches CREATE_COMPLETE. The same file can be given to
+     * update-cloudformation-stack. Not required.
+     *
+     * @param fingerprintFile
+     *            The file to record fingerprints in, which can be shared by
+     *            any number of stacks.
+     */
+    public void setFingerprintFile(File fingerprintFile) {
+        this.fingerprintFile = fingerprintFile;
+    }
+
+    /**
+     * Set whether to create the stack even if it was already created with the
+     * same fingerprint. Not required, default is false.
+     *
+     * @param force
+     *            Whether to ignore the recorded fingerprint.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
     private void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -243,9 +319,12 @@ public class CreateStackTask extends AWSAntTask {
             errors.append("Error in parameter configuration: You can set either stackPolicyBody or stackPolicyURL, but not both \n");
         }
 
-        if ((templateBody == null) == (templateURL == null)) {
+        int templateSources = (templateBody == null ? 0 : 1)
+                + (templateURL == null ? 0 : 1)
+                + (templateFile == null ? 0 : 1);
+        if (templateSources != 1) {
             areMalformedParams = true;
-            errors.append("Error in parameter configuration: You must set either templateBody or templateURL (But not both) \n");
+            errors.append("Error in parameter configuration: You must set one of templateBody, templateURL or templateFile \n");
         }
 
         if (disableRollback != null && onFailure != null) {
@@ -261,12 +340,52 @@ public class CreateStackTask extends AWSAntTask {
 
     public void execute() {
         checkParams();
+        TemplateFile template = null;
+        if (templateFile != null) {
+            try {
+                template = TemplateFile.read(templateFile);
+            } catch (IOException e) {
+                throw new BuildException("Could not read template file "
+                        + templateFile + ": " + e.getMessage(), e);
+            }
+            if (template.isTooLargeForBody() && templateBucket == null) {
+                throw new BuildException("The template file " + templateFile
+                        + " is larger than " + TemplateFile.MAX_TEMPLATE_BODY_SIZE
+                        + " bytes, so templateBucket is required to upload it");
+            }
+        }
+        String fingerprint = null;
+        if (fingerprintFile != null) {
+            fingerprint = computeFingerprint(template);
+            if (fingerprint != null && !force
+                    && fingerprint.equals(lookupFingerprint())) {
+                System.out.println("Stack " + stackName
+                        + " was already created with the same template and parameters (fingerprint "
+                        + fingerprint.substring(0, 12) + "), skipping.");
+                return;
+            }
+        }
+        String body = templateBody;
+        String url = templateURL;
+        if (template != null) {
+            if (!template.isTooLargeForBody()) {
+                body = template.getBody();
+            } else {
+                try {
+                    url = template.upload(getOrCreateClient(AmazonS3Client.class),
+                            templateBucket, templateKeyPrefix);
+                } catch (Exception e) {
+                    throw new BuildException("Could not upload template to "
+                            + templateBucket + ": " + e.getMessage(), e);
+                }
+            }
+        }
         AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
         CreateStackRequest createStackRequest = new CreateStackRequest()
                 .withDisableRollback(disableRollback).withOnFailure(onFailure)
                 .withStackName(stackName).withStackPolicyBody(stackPolicyBody)
                 .withStackPolicyURL(stackPolicyURL)
-                .withTemplateBody(templateBody).withTemplateURL(templateURL)
+                .withTemplateBody(body).withTemplateURL(url)
                 .withTimeoutInMinutes(timeoutInMinutes);
 
         if (capabilities.size() > 0) {
@@ -280,10 +399,16 @@ public class CreateStackTask extends AWSAntTask {
         }
         try {
             client.createStack(createStackRequest);
+            StackDescriptionCache.invalidate(getProject(), stackName);
             System.out.println("Create stack " + stackName
                     + " request submitted.");
             if(waitForCreation) {
-                WaitForStackToReachStateTask.waitForCloudFormationStackToReachStatus(client, stackName, CREATE_COMPLETE, null);
+                boolean created = WaitForStackToReachStateTask.waitForCloudFormationStackToReachStatus(client, stackName, CREATE_COMPLETE, null,
+                        new BackoffPoller(TimeUnit.MINUTES.toMillis(timeoutInMinutes)));
+                StackDescriptionCache.invalidate(getProject(), stackName);
+                if (created && fingerprint != null) {
+                    TemplateFingerprints.record(fingerprintFile, stackName, fingerprint);
+                }
             }
         } catch (Exception e) {
             throw new BuildException(
@@ -291,6 +416,51 @@ public class CreateStackTask extends AWSAntTask {
         }
     }
 
+    /**
+     * Returns the fingerprint of this stack, or null if a template or policy
+     * URL could not be read, in which case the stack is always created.
+     */
+    private String computeFingerprint(TemplateFile template) {
+        AmazonS3Client s3Client = getOrCreateClient(AmazonS3Client.class);
+        try {
+            TemplateFingerprints.Builder builder = new TemplateFingerprints.Builder();
+            if (template == null) {
+                builder.add("templateBody", templateBody)
+                        .addContentOf("templateURL", templateURL, s3Client);
+            } else if (!template.isTooLargeForBody()) {
+                builder.add("templateBody", template.getBody())
+                        .add("templateURL", null);
+            } else {
+                // The same as for a templateURL pointing at the uploaded copy
+                builder.add("templateBody", null)
+                        .add("templateURL", template.getHash());
+            }
+            return builder
+                    .add("usePreviousTemplate", null)
+                    .addParameters(parameters)
+                    .addAll("capabilities", capabilities)
+                    .addAll("notificationArns", notificationArns)
+                    .add("stackPolicyBody", stackPolicyBody)
+                    .addContentOf("stackPolicyURL", stackPolicyURL,
+                            s3Client)
+                    .addTags(tags).build();
+        } catch (IOException e) {
+            System.out.println("Could not read the template or policy of stack "
+                    + stackName + " to fingerprint it, so it will be created: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    private String lookupFingerprint() {
+        try {
+            return TemplateFingerprints.lookup(fingerprintFile, stackName);
+        } catch (IOException e) {
+            throw new BuildException("Could not read fingerprint file "
+                    + fingerprintFile + ": " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Nested element for specifying a Capability. Set the value to the
      * Capability you want to add to the stack.
@@ -14,33 +14,67 @@
  */
 package com.amazonaws.ant.cloudformation;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import com.amazonaws.services.cloudformation.model.*;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
 
 public class DescribeStackTask extends AWSAntTask {
 
-    private String stackName;
-    
-    private Map<String, StackItem> parameters = new HashMap<String, StackItem>();
-    private Map<String, StackItem> tags = new HashMap<String, StackItem>();
-    private Map<String, StackItem> outputs = new HashMap<String, StackItem>();
+    private DescribedStack stack = new DescribedStack();
+    private List<DescribedStack> stacks = new ArrayList<DescribedStack>();
+    private int cacheTtlInSeconds = 0;
+    private File propertiesFile;
     
     /**
-     * Set the name of this stack. Required.
+     * Set the name of this stack. Required, unless nested Stack elements are
+     * given.
      * 
      * @param stackName
      *            The stack name
      */
     public void setStackName(String stackName) {
-        this.stackName = stackName;
+        stack.setName(stackName);
     }
     
+    /**
+     * Set a prefix under which to set every output, parameter and tag of the
+     * stack as a property. Outputs are set as prefix + output key, parameters
+     * as prefix + "parameters." + parameter key, and tags as prefix + "tags."
+     * + tag key. Not required.
+     * 
+     * @param prefix
+     *            The property prefix, such as "stack.net."
+     */
+    public void setPrefix(String prefix) {
+        stack.setPrefix(prefix);
+    }
+
+    /**
+     * Set a file to also write every property set by this task to, so that
+     * later builds can load them with the property task without describing
+     * the stacks again. Not required.
+     * 
+     * @param propertiesFile
+     *            The properties file to write
+     */
+    public void setPropertiesFile(File propertiesFile) {
+        this.propertiesFile = propertiesFile;
+    }
+
     /**
      * Allows you to add any number of nested stack parameter elements.
      * 
@@ -48,7 +82,7 @@ public class DescribeStackTask extends AWSAntTask {
      *            a StackItem object.
      */
     public void addConfiguredStackParameter(StackItem stackParameter) {
-        parameters.put(stackParameter.getName(), stackParameter);
+        stack.addConfiguredStackParameter(stackParameter);
     }
     
     /**
@@ -58,21 +92,58 @@ public class DescribeStackTask extends AWSAntTask {
      *            a StackItem object.
      */
     public void addConfiguredStackTag(StackItem stackTag) {
-        tags.put(stackTag.getName(), stackTag);
+        stack.addConfiguredStackTag(stackTag);
     }
 
     public void addConfiguredStackOutput(StackItem stackOutput)
     {
-        outputs.put(stackOutput.getName(), stackOutput);
+        stack.addConfiguredStackOutput(stackOutput);
+    }
+
+    /**
+     * Allows you to add any number of nested Stack elements, each naming
+     * another stack and the items to read from it. All the stacks are
+     * described together, with a single describeStacks page walk.
+     * 
+     * @param describedStack
+     *            a DescribedStack object.
+     */
+    public void addConfiguredStack(DescribedStack describedStack) {
+        stacks.add(describedStack);
+    }
+
+    /**
+     * Set how long a stack description can be reused for. Descriptions are
+     * shared by every describe-cloudformation-stack in the project, and are
+     * dropped whenever create-cloudformation-stack, update-cloudformation-stack
+     * or one of the waiters changes or waits on the stack. Not required,
+     * default is 0, which always describes the stacks again.
+     * 
+     * @param cacheTtlInSeconds
+     *            How many seconds a description can be reused for
+     */
+    public void setCacheTtlInSeconds(int cacheTtlInSeconds) {
+        this.cacheTtlInSeconds = cacheTtlInSeconds;
     }
     
     private void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
 
-        if (stackName == null) {
+        if (stack.getName() == null && stacks.isEmpty()) {
             areMalformedParams = true;
-            errors.append("Missing parameter: stackName is required. \n");
+            errors.append("Missing parameter: stackName or a nested Stack is required. \n");
+        }
+        for (DescribedStack describedStack : stacks) {
+            if (describedStack.getName() == null) {
+                areMalformedParams = true;
+                errors.append("Missing parameter: name is required for each nested Stack. \n");
+                break;
+            }
+        }
+        if (cacheTtlInSeconds < 0) {
+            areMalformedParams = true;
+            errors.append("cacheTtlInSeconds cannot be negative \n");
         }
 
         if (areMalformedParams) {
@@ -86,56 +157,236 @@ public class DescribeStackTask extends AWSAntTask {
     {
         checkParams();
         AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
-        DescribeStacksRequest describeStacksRequest = new DescribeStacksRequest()
-            .withStackName(stackName);
+        List<DescribedStack> toDescribe = new ArrayList<DescribedStack>();
+        if (stack.getName() != null) {
+            toDescribe.add(stack);
+        }
+        toDescribe.addAll(stacks);
 
+        Properties exported = new Properties();
         try {
-            DescribeStacksResult result = client.describeStacks(describeStacksRequest);
-            Stack stack = result.getStacks().get(0);
+            Map<String, Stack> described = describeStacks(client, toDescribe);
+            for (DescribedStack describedStack : toDescribe) {
+                describedStack.setProperties(getProject(),
+                        described.get(describedStack.getName()), exported);
+            }
+        } catch (Exception e) {
+            throw new BuildException(
+                    "Could not describe stack " + e.getMessage(), e);
+        }
+
+        if (propertiesFile != null) {
+            try {
+                writePropertiesFile(exported);
+            } catch (IOException e) {
+                throw new BuildException("Could not write properties file "
+                        + propertiesFile + ": " + e.getMessage(), e);
+            }
+            System.out.println("Wrote " + exported.size() + " properties to "
+                    + propertiesFile);
+        }
+    }
+
+    private void writePropertiesFile(Properties exported) throws IOException {
+        File dir = propertiesFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        OutputStream out = new FileOutputStream(propertiesFile);
+        try {
+            exported.store(out, "CloudFormation stack properties");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the descriptions of the stacks keyed by the name or ID they were
+     * given as, taking those that are fresh enough from the cache. A single
+     * missing stack is described by name. Several are found by walking the
+     * pages of one describeStacks call for all the stacks in the region,
+     * stopping once all of them have been found.
+     */
+    private Map<String, Stack> describeStacks(AmazonCloudFormationClient client,
+            List<DescribedStack> toDescribe) {
+        StackDescriptionCache cache = StackDescriptionCache.forProject(getProject());
+        long timeToLiveInMs = cacheTtlInSeconds * 1000L;
+        Map<String, Stack> described = new HashMap<String, Stack>();
+        Map<String, Stack> missing = new LinkedHashMap<String, Stack>();
+        for (DescribedStack describedStack : toDescribe) {
+            String name = describedStack.getName();
+            Stack cached = cache.get(client, name, timeToLiveInMs);
+            if (cached != null) {
+                described.put(name, cached);
+            } else {
+                missing.put(name, null);
+            }
+        }
+
+        if (missing.size() == 1) {
+            String name = missing.keySet().iterator().next();
+            Stack stack = client.describeStacks(new DescribeStacksRequest()
+                    .withStackName(name)).getStacks().get(0);
+            cache.put(client, stack);
+            described.put(name, stack);
+        } else if (missing.size() > 1) {
+            int found = 0;
+            String nextToken = null;
+            do {
+                DescribeStacksResult result = client
+                        .describeStacks(new DescribeStacksRequest()
+                                .withNextToken(nextToken));
+                for (Stack stack : result.getStacks()) {
+                    for (String key : new String[] { stack.getStackName(), stack.getStackId() }) {
+                        if (missing.containsKey(key) && missing.get(key) == null) {
+                            missing.put(key, stack);
+                            cache.put(client, stack);
+                            found++;
+                        }
+                    }
+                }
+                nextToken = result.getNextToken();
+            } while (nextToken != null && found < missing.size());
+            for (Map.Entry<String, Stack> entry : missing.entrySet()) {
+                if (entry.getValue() == null) {
+                    throw new BuildException("Stack " + entry.getKey()
+                            + " does not exist");
+                }
+                described.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return described;
+    }
+
+    /**
+     * Nested element for specifying a stack to describe, and the parameters,
+     * tags and outputs to read from it into properties.
+     */
+    public static class DescribedStack {
+        private String name;
+        private String prefix;
+
+        private Map<String, StackItem> parameters = new HashMap<String, StackItem>();
+        private Map<String, StackItem> tags = new HashMap<String, StackItem>();
+        private Map<String, StackItem> outputs = new HashMap<String, StackItem>();
+
+        /**
+         * Set the name or ID of the stack. Required.
+         * 
+         * @param name
+         *            The stack name or ID
+         */
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Set a prefix under which to set every output, parameter and tag of
+         * the stack as a property, as for the task's prefix attribute. Not
+         * required.
+         * 
+         * @param prefix
+         *            The property prefix
+         */
+        public void setPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public void addConfiguredStackParameter(StackItem stackParameter) {
+            parameters.put(stackParameter.getName(), stackParameter);
+        }
+
+        public void addConfiguredStackTag(StackItem stackTag) {
+            tags.put(stackTag.getName(), stackTag);
+        }
+
+        public void addConfiguredStackOutput(StackItem stackOutput) {
+            outputs.put(stackOutput.getName(), stackOutput);
+        }
+
+        /**
+         * Sets the properties for the requested items of the stack, falling
+         * back to each item's default when the stack does not have it, and
+         * for all of its items if there is a prefix. Each property is also
+         * added to the exported properties with the value the project holds,
+         * which is the value it had before if it was already set.
+         */
+        void setProperties(Project project, Stack stack, Properties exported) {
+            Map<String, StackItem> parameters = new HashMap<String, StackItem>(this.parameters);
+            Map<String, StackItem> tags = new HashMap<String, StackItem>(this.tags);
+            Map<String, StackItem> outputs = new HashMap<String, StackItem>(this.outputs);
 
             // put the desired stack parameters into properties
             if(stack.getParameters() != null) {
                 for(Parameter parameter : stack.getParameters()) {
                     StackItem item = parameters.remove(parameter.getParameterKey());
                     if(item != null) {
-                        getProject().setNewProperty(item.getProperty(), parameter.getParameterValue());
+                        setProperty(project, exported, item.getProperty(), parameter.getParameterValue());
                     }
                 }
             }
             
             for(StackItem item : parameters.values()) {
-                getProject().setNewProperty(item.getProperty(), item.getDefault());
+                setProperty(project, exported, item.getProperty(), item.getDefault());
             }
             
             if(stack.getTags() != null) {
                 for(Tag tag : stack.getTags()) {
                     StackItem item = tags.remove(tag.getKey());
                     if(item != null) {
-                        getProject().setNewProperty(item.getProperty(), tag.getValue());
+                        setProperty(project, exported, item.getProperty(), tag.getValue());
                     }
                 }
             }
             
             for(StackItem item : tags.values()) {
-                getProject().setNewProperty(item.getProperty(), item.getDefault());
+                setProperty(project, exported, item.getProperty(), item.getDefault());
             }
 
             if(stack.getOutputs() != null) {
                 for(Output output : stack.getOutputs()) {
                     StackItem item = outputs.remove(output.getOutputKey());
                     if(item != null) {
-                        getProject().setNewProperty(item.getProperty(), output.getOutputValue());
+                        setProperty(project, exported, item.getProperty(), output.getOutputValue());
                     }
                 }
             }
 
             for(StackItem item : outputs.values()) {
-                getProject().setNewProperty(item.getProperty(), item.getDefault());
+                setProperty(project, exported, item.getProperty(), item.getDefault());
             }
 
-        } catch (Exception e) {
-            throw new BuildException(
-                    "Could not describe stack " + e.getMessage(), e);
+            if (prefix != null) {
+                if (stack.getOutputs() != null) {
+                    for (Output output : stack.getOutputs()) {
+                        setProperty(project, exported, prefix + output.getOutputKey(),
+                                output.getOutputValue());
+                    }
+                }
+                if (stack.getParameters() != null) {
+                    for (Parameter parameter : stack.getParameters()) {
+                        setProperty(project, exported, prefix + "parameters."
+                                + parameter.getParameterKey(), parameter.getParameterValue());
+                    }
+                }
+                if (stack.getTags() != null) {
+                    for (Tag tag : stack.getTags()) {
+                        setProperty(project, exported, prefix + "tags." + tag.getKey(),
+                                tag.getValue());
+                    }
+                }
+            }
+        }
+
+        private static void setProperty(Project project, Properties exported,
+                String name, String value) {
+            project.setNewProperty(name, value);
+            String held = project.getProperty(name);
+            if (held != null) {
+                exported.setProperty(name, held);
+            }
         }
     }
     
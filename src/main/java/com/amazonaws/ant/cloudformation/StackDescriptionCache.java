@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * The stacks described so far in a project, so that tasks reading the same
+ * stacks over and over do not describe them again each time. Stacks are kept
+ * per client, since the same name can refer to different stacks in different
+ * accounts or regions, and can be looked up by name or ID. The tasks that
+ * create, update or wait on a stack drop it from the cache, so only changes
+ * made outside the build can be missed, and only for as long as the time to
+ * live a reader asks for.
+ */
+class StackDescriptionCache {
+
+    private static final String STACK_DESCRIPTION_CACHE_REFERENCE = "stackDescriptionCache";
+
+    private final Map<AmazonCloudFormationClient, Map<String, Entry>> stacks = new IdentityHashMap<AmazonCloudFormationClient, Map<String, Entry>>();
+
+    /**
+     * Returns the cache of the project, creating it if need be.
+     */
+    static StackDescriptionCache forProject(Project project) {
+        synchronized (project) {
+            StackDescriptionCache cache = project
+                    .getReference(STACK_DESCRIPTION_CACHE_REFERENCE);
+            if (cache == null) {
+                cache = new StackDescriptionCache();
+                project.addReference(STACK_DESCRIPTION_CACHE_REFERENCE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drops the stack from the cache of the project, if it has one, for
+     * every client.
+     */
+    static void invalidate(Project project, String stackNameOrId) {
+        StackDescriptionCache cache;
+        synchronized (project) {
+            cache = project.getReference(STACK_DESCRIPTION_CACHE_REFERENCE);
+        }
+        if (cache != null) {
+            cache.invalidate(stackNameOrId);
+        }
+    }
+
+    /**
+     * Returns the stack if it was described less than the given time ago,
+     * otherwise null.
+     */
+    synchronized Stack get(AmazonCloudFormationClient client,
+            String stackNameOrId, long timeToLiveInMs) {
+        Map<String, Entry> clientStacks = stacks.get(client);
+        Entry entry = clientStacks == null ? null : clientStacks
+                .get(stackNameOrId);
+        if (entry == null
+                || System.currentTimeMillis() - entry.describedAt >= timeToLiveInMs) {
+            return null;
+        }
+        return entry.stack;
+    }
+
+    /**
+     * Caches a stack that was just described, under both its name and ID.
+     */
+    synchronized void put(AmazonCloudFormationClient client, Stack stack) {
+        Map<String, Entry> clientStacks = stacks.get(client);
+        if (clientStacks == null) {
+            clientStacks = new HashMap<String, Entry>();
+            stacks.put(client, clientStacks);
+        }
+        Entry entry = new Entry(stack, System.currentTimeMillis());
+        clientStacks.put(stack.getStackName(), entry);
+        clientStacks.put(stack.getStackId(), entry);
+    }
+
+    synchronized void invalidate(String stackNameOrId) {
+        for (Map<String, Entry> clientStacks : stacks.values()) {
+            Entry entry = clientStacks.remove(stackNameOrId);
+            if (entry != null) {
+                clientStacks.remove(entry.stack.getStackName());
+                clientStacks.remove(entry.stack.getStackId());
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Stack stack;
+        private final long describedAt;
+
+        private Entry(Stack stack, long describedAt) {
+            this.stack = stack;
+            this.describedAt = describedAt;
+        }
+    }
+}
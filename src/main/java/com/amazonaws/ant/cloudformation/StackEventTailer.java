@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+/**
+ * Follows the events of a stack, returning on each poll only the events that
+ * are newer than those already returned. DescribeStackEvents lists events
+ * newest first, so each poll pages back only until it reaches an event it has
+ * seen. The first poll goes back to the event that started the stack's
+ * current create, update or delete, so a waiter started after the operation
+ * still sees all of its events. A caller about to start an operation itself
+ * should call skipExistingEvents first instead, since the operation may not
+ * have logged its first event by the time of the first poll.
+ */
+class StackEventTailer {
+
+    private static final Set<String> OPERATION_START_STATUSES = new HashSet<String>(
+            Arrays.asList("CREATE_IN_PROGRESS", "UPDATE_IN_PROGRESS",
+                    "DELETE_IN_PROGRESS"));
+
+    private final AmazonCloudFormationClient client;
+    private String stackName;
+    private String lastEventId;
+
+    StackEventTailer(AmazonCloudFormationClient client, String stackName) {
+        this.client = client;
+        this.stackName = stackName;
+    }
+
+    /**
+     * Marks every event the stack already has as seen, so that polls only
+     * return events logged from now on.
+     */
+    void skipExistingEvents() {
+        List<StackEvent> events = client.describeStackEvents(
+                new DescribeStackEventsRequest().withStackName(stackName))
+                .getStackEvents();
+        if (!events.isEmpty()) {
+            lastEventId = events.get(0).getEventId();
+            stackName = events.get(0).getStackId();
+        } else {
+            // Nothing is skipped, and the operation start is not looked for
+            lastEventId = "";
+        }
+    }
+
+    /**
+     * Returns the events since the last poll, oldest first.
+     */
+    List<StackEvent> poll() {
+        List<StackEvent> events = new ArrayList<StackEvent>();
+        String nextToken = null;
+        boolean caughtUp = false;
+        do {
+            DescribeStackEventsResult result = client
+                    .describeStackEvents(new DescribeStackEventsRequest()
+                            .withStackName(stackName).withNextToken(nextToken));
+            for (StackEvent event : result.getStackEvents()) {
+                if (event.getEventId().equals(lastEventId)) {
+                    caughtUp = true;
+                    break;
+                }
+                events.add(event);
+                if (lastEventId == null && isStackEvent(event)
+                        && OPERATION_START_STATUSES.contains(event
+                                .getResourceStatus())) {
+                    caughtUp = true;
+                    break;
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (!caughtUp && nextToken != null);
+
+        if (!events.isEmpty()) {
+            lastEventId = events.get(0).getEventId();
+            // A deleted stack can only be described by its ID
+            stackName = events.get(0).getStackId();
+        }
+        Collections.reverse(events);
+        return events;
+    }
+
+    /**
+     * Returns whether the event is about the stack itself rather than one of
+     * its resources. The resource status of such an event is the status of
+     * the stack.
+     */
+    static boolean isStackEvent(StackEvent event) {
+        return event.getStackId().equals(event.getPhysicalResourceId());
+    }
+
+    /**
+     * Returns a one line description of the event.
+     */
+    static String format(StackEvent event) {
+        StringBuilder line = new StringBuilder(event.getLogicalResourceId())
+                .append(" (").append(event.getResourceType()).append("): ")
+                .append(event.getResourceStatus());
+        if (event.getResourceStatusReason() != null) {
+            line.append(" - ").append(event.getResourceStatusReason());
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+
+import com.amazonaws.ant.AWSPollingAntTask;
+import com.amazonaws.ant.autoscaling.Constants;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * Brings up a set of CloudFormation stacks, running independent stacks at the
+ * same time. Each nested Stack element holds the tasks that create or update
+ * one stack. A stack starts once every stack it depends on has finished, and
+ * the outputs of each finished stack are set as properties named after it, so
+ * that the tasks of later stacks can refer to them as ${stack.OutputKey}.
+ * Dependencies can be declared with dependsOn, and are also inferred from
+ * such references in the attributes and text of the nested tasks. Only a
+ * reference made of a stack's output property prefix and an alphanumeric
+ * output key, to a property that is not already set, counts as one.
+ */
+public class StackOrchestrationTask extends AWSPollingAntTask {
+
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 50;
+    private static final Pattern PROPERTY_REFERENCE = Pattern
+            .compile("\\$\\{([^}]+)\\}");
+    private static final Pattern OUTPUT_KEY = Pattern.compile("[A-Za-z0-9]+");
+
+    private Map<String, OrchestratedStack> stacks = new LinkedHashMap<String, OrchestratedStack>();
+    private int maxInFlight = 4;
+    private String delimiter = Constants.DEFAULT_DELIMITER;
+
+    public StackOrchestrationTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
+
+    /**
+     * Allows you to add any number of nested Stack elements.
+     *
+     * @param stack
+     *            A preconfigured OrchestratedStack object.
+     */
+    public void addConfiguredStack(OrchestratedStack stack) {
+        if (stack.name == null) {
+            throw new BuildException("Missing parameter: every Stack needs a name");
+        }
+        if (stacks.put(stack.name, stack) != null) {
+            throw new BuildException("Stack " + stack.name + " is defined more than once");
+        }
+    }
+
+    /**
+     * Set the most stacks to work on at the same time. Not required, default
+     * is 4.
+     *
+     * @param maxInFlight
+     *            The maximum number of stacks to create or update at once
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Set the delimiter separating the names in dependsOn and the statuses in
+     * status. Not required, default is ";".
+     *
+     * @param delimiter
+     *            The delimiter
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    private void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+
+        if (stacks.isEmpty()) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: at least one Stack is required \n");
+        }
+        if (maxInFlight < 1) {
+            areMalformedParams = true;
+            errors.append("maxInFlight must be at least 1 \n");
+        }
+        if (!checkPollingParams(errors)) {
+            areMalformedParams = true;
+        }
+
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    /**
+     * Works out what each stack depends on, from its dependsOn attribute and
+     * from references to other stacks' outputs in its tasks, and fails if a
+     * dependency does not exist or the dependencies form a cycle.
+     */
+    Map<String, Set<String>> resolveDependencies() {
+        Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+        for (OrchestratedStack stack : stacks.values()) {
+            Set<String> dependsOn = new LinkedHashSet<String>();
+            if (stack.dependsOn != null) {
+                for (String name : stack.dependsOn.split(delimiter)) {
+                    name = name.trim();
+                    if (!stacks.containsKey(name)) {
+                        throw new BuildException("Stack " + stack.name
+                                + " depends on unknown stack " + name);
+                    }
+                    dependsOn.add(name);
+                }
+            }
+            for (Task task : stack.tasks) {
+                if (task instanceof UnknownElement) {
+                    addReferencedStacks(((UnknownElement) task).getWrapper(), dependsOn);
+                }
+            }
+            dependsOn.remove(stack.name);
+            dependencies.put(stack.name, dependsOn);
+        }
+
+        // Kahn's algorithm: if some stacks can never become ready, there is a cycle
+        Map<String, Integer> remaining = new HashMap<String, Integer>();
+        LinkedList<String> ready = new LinkedList<String>();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            remaining.put(entry.getKey(), entry.getValue().size());
+            if (entry.getValue().isEmpty()) {
+                ready.add(entry.getKey());
+            }
+        }
+        int ordered = 0;
+        while (!ready.isEmpty()) {
+            String name = ready.removeFirst();
+            ordered++;
+            for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                if (entry.getValue().contains(name)) {
+                    int left = remaining.get(entry.getKey()) - 1;
+                    remaining.put(entry.getKey(), left);
+                    if (left == 0) {
+                        ready.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        if (ordered < dependencies.size()) {
+            List<String> cyclic = new ArrayList<String>();
+            for (Map.Entry<String, Integer> entry : remaining.entrySet()) {
+                if (entry.getValue() > 0) {
+                    cyclic.add(entry.getKey());
+                }
+            }
+            throw new BuildException("Stacks " + cyclic + " have cyclic dependencies");
+        }
+        return dependencies;
+    }
+
+    /**
+     * Adds every stack whose outputs are referred to in the raw attributes
+     * or text of the element or any element nested in it. The references are
+     * read before Ant expands them, so they can point at outputs that do not
+     * exist yet. Properties that are already set, such as ${env.HOME}, are
+     * not outputs, since outputs never replace an existing property.
+     */
+    private void addReferencedStacks(RuntimeConfigurable wrapper, Set<String> referenced) {
+        List<String> values = new ArrayList<String>();
+        for (Object value : wrapper.getAttributeMap().values()) {
+            values.add(String.valueOf(value));
+        }
+        values.add(wrapper.getText().toString());
+        for (String value : values) {
+            Matcher matcher = PROPERTY_REFERENCE.matcher(value);
+            while (matcher.find()) {
+                String property = matcher.group(1);
+                if (getProject().getProperty(property) != null) {
+                    continue;
+                }
+                for (OrchestratedStack stack : stacks.values()) {
+                    String prefix = stack.getOutputPropertyPrefix();
+                    if (property.startsWith(prefix) && OUTPUT_KEY.matcher(
+                            property.substring(prefix.length())).matches()) {
+                        referenced.add(stack.name);
+                    }
+                }
+            }
+        }
+        Enumeration<RuntimeConfigurable> children = wrapper.getChildren();
+        while (children.hasMoreElements()) {
+            addReferencedStacks(children.nextElement(), referenced);
+        }
+    }
+
+    /**
+     * Runs the tasks of every stack, starting each stack as soon as all the
+     * stacks it depends on have finished, with at most maxInFlight stacks
+     * running at once. If a stack fails, no more stacks are started, the
+     * stacks already running are allowed to finish, and the build fails.
+     */
+    public void execute() {
+        checkParams();
+        Map<String, Set<String>> dependencies = resolveDependencies();
+        final AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
+
+        Set<String> waiting = new LinkedHashSet<String>(stacks.keySet());
+        Set<String> finished = new LinkedHashSet<String>();
+        Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxInFlight, stacks.size()));
+        CompletionService<String> completionService = new ExecutorCompletionService<String>(executor);
+        Map<Future<String>, String> running = new HashMap<Future<String>, String>();
+        try {
+            while (true) {
+                if (failures.isEmpty()) {
+                    for (String name : new ArrayList<String>(waiting)) {
+                        if (running.size() >= maxInFlight) {
+                            break;
+                        }
+                        if (finished.containsAll(dependencies.get(name))) {
+                            waiting.remove(name);
+                            final OrchestratedStack stack = stacks.get(name);
+                            System.out.println("Starting stack " + name);
+                            running.put(completionService.submit(new Callable<String>() {
+                                public String call() {
+                                    runStack(client, stack);
+                                    return stack.name;
+                                }
+                            }), name);
+                        }
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                Future<String> done = completionService.take();
+                String name = running.remove(done);
+                try {
+                    done.get();
+                    finished.add(name);
+                    System.out.println("Stack " + name + " finished");
+                } catch (ExecutionException e) {
+                    failures.put(name, e.getCause());
+                    System.out.println("Stack " + name + " failed: " + e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException("Interrupted while orchestrating stacks", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            Map.Entry<String, Throwable> first = failures.entrySet().iterator().next();
+            throw new BuildException("Stacks " + failures.keySet() + " failed, stacks "
+                    + waiting + " were not started. First failure: "
+                    + first.getValue().getMessage(), first.getValue());
+        }
+    }
+
+    /**
+     * Runs the tasks of a stack, waits for the stack to reach one of its
+     * statuses, and sets its outputs as properties.
+     */
+    private void runStack(AmazonCloudFormationClient client, OrchestratedStack stack) {
+        for (Task task : stack.tasks) {
+            task.perform();
+        }
+        boolean reachedStatus = WaitForStackToReachStateTask.waitForCloudFormationStackToReachStatus(client,
+                stack.name, stack.status, delimiter, createPoller());
+        StackDescriptionCache.invalidate(getProject(), stack.name);
+        if (!reachedStatus) {
+            throw new BuildException("Stack " + stack.name + " did not reach status " + stack.status);
+        }
+        Stack described = client.describeStacks(new DescribeStacksRequest()
+                .withStackName(stack.name)).getStacks().get(0);
+        StackDescriptionCache.forProject(getProject()).put(client, described);
+        List<Output> outputs = described.getOutputs();
+        if (outputs != null) {
+            for (Output output : outputs) {
+                getProject().setNewProperty(stack.getOutputPropertyPrefix() + output.getOutputKey(),
+                        output.getOutputValue());
+            }
+        }
+    }
+
+    /**
+     * Nested element holding the tasks that create or update one stack.
+     */
+    public static class OrchestratedStack implements TaskContainer {
+        private List<Task> tasks = new LinkedList<Task>();
+        private String name;
+        private String dependsOn;
+        private String status = "CREATE_COMPLETE;UPDATE_COMPLETE";
+        private String outputPropertyPrefix;
+
+        public OrchestratedStack() {
+            // required by Ant
+        }
+
+        /**
+         * Allows you to add any number of tasks, such as
+         * create-cloudformation-stack or update-cloudformation-stack, to run
+         * in order for this stack.
+         *
+         * @param task
+         *            A task to run for this stack
+         */
+        public void addTask(Task task) {
+            tasks.add(task);
+        }
+
+        /**
+         * Set the name of the CloudFormation stack. Required.
+         *
+         * @param name
+         *            The stack name
+         */
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Set the names of the stacks that must finish before this one
+         * starts, separated by the delimiter. Not required; stacks whose
+         * outputs are referred to in the nested tasks are depended on
+         * regardless.
+         *
+         * @param dependsOn
+         *            The names of the stacks this stack depends on
+         */
+        public void setDependsOn(String dependsOn) {
+            this.dependsOn = dependsOn;
+        }
+
+        /**
+         * Set the statuses, separated by the delimiter, that mean this stack
+         * has finished once its tasks have run. Not required, default is
+         * "CREATE_COMPLETE;UPDATE_COMPLETE".
+         *
+         * @param status
+         *            The statuses to wait for this stack to reach
+         */
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        /**
+         * Set the prefix of the properties this stack's outputs are set as.
+         * Not required, default is the stack name followed by a period.
+         *
+         * @param outputPropertyPrefix
+         *            The prefix of the output properties
+         */
+        public void setOutputPropertyPrefix(String outputPropertyPrefix) {
+            this.outputPropertyPrefix = outputPropertyPrefix;
+        }
+
+        private String getOutputPropertyPrefix() {
+            return outputPropertyPrefix == null ? name + "." : outputPropertyPrefix;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * A template read from a local file. A template small enough to be passed
+ * inline is used as the template body. A larger one is stored in S3 under a
+ * key derived from the SHA-256 of its content, so it is only uploaded the
+ * first time that content is used, and passed as a template URL.
+ */
+class TemplateFile {
+
+    /**
+     * The largest template body CloudFormation accepts inline, in bytes.
+     */
+    static final int MAX_TEMPLATE_BODY_SIZE = 51200;
+
+    private final byte[] content;
+    private final String hash;
+
+    private TemplateFile(byte[] content) {
+        this.content = content;
+        try {
+            this.hash = BinaryUtils.toHex(MessageDigest.getInstance("SHA-256")
+                    .digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static TemplateFile read(File file) throws IOException {
+        return new TemplateFile(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Returns whether the template is too large to be passed inline.
+     */
+    boolean isTooLargeForBody() {
+        return content.length > MAX_TEMPLATE_BODY_SIZE;
+    }
+
+    String getBody() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the hex SHA-256 of the template.
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Makes sure the template is in the bucket under the key for its content,
+     * uploading it only if it is not there yet, and returns its URL.
+     */
+    String upload(AmazonS3Client client, String bucketName, String keyPrefix) {
+        String key = keyPrefix + hash + ".template";
+        if (client.doesObjectExist(bucketName, key)) {
+            System.out.println("Template " + hash.substring(0, 12)
+                    + " is already in bucket " + bucketName + ".");
+        } else {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length);
+            client.putObject(bucketName, key,
+                    new ByteArrayInputStream(content), metadata);
+            System.out.println("Uploaded template to " + bucketName + "/"
+                    + key + ".");
+        }
+        return client.getUrl(bucketName, key).toString();
+    }
+}
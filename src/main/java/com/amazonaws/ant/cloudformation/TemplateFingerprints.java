@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * A local record of the fingerprint of everything each stack was last
+ * created or updated with, so that a build can tell that a stack is already
+ * up to date without calling CloudFormation at all. The record is a
+ * properties file mapping stack names to fingerprints. It can be shared by
+ * tasks running in parallel; each write re-reads the file and replaces it
+ * atomically.
+ */
+class TemplateFingerprints {
+
+    private static final Object LOCK = new Object();
+    private static final int CONNECT_TIMEOUT_IN_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_IN_MS = 30 * 1000;
+
+    private TemplateFingerprints() {
+    }
+
+    /**
+     * Returns the fingerprint recorded for the stack, or null if there is
+     * none.
+     */
+    static String lookup(File file, String stackName) throws IOException {
+        synchronized (LOCK) {
+            return load(file).getProperty(stackName);
+        }
+    }
+
+    /**
+     * Records the fingerprint the stack was just created or updated with.
+     */
+    static void record(File file, String stackName, String fingerprint)
+            throws IOException {
+        synchronized (LOCK) {
+            Properties fingerprints = load(file);
+            fingerprints.setProperty(stackName, fingerprint);
+            File dir = file.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            File temp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    fingerprints.store(out, "CloudFormation template fingerprints");
+                } finally {
+                    out.close();
+                }
+                try {
+                    Files.move(temp.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+            }
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties fingerprints = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                fingerprints.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Builds the fingerprint of a stack operation from its named inputs. The
+     * order of the values of each collection does not matter.
+     */
+    static class Builder {
+
+        private final MessageDigest digest;
+
+        Builder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Builder add(String name, Object value) {
+            String text = String.valueOf(value);
+            digest.update((name + "=" + text.length() + ":" + text + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        /**
+         * Adds the content the URL points to rather than the URL itself, so
+         * that a template replaced in place is noticed. An S3 URL is read
+         * through the given client, so that private objects can be read;
+         * any other URL is read directly.
+         */
+        Builder addContentOf(String name, String url, AmazonS3 s3Client)
+                throws IOException {
+            if (url == null) {
+                return add(name, null);
+            }
+            MessageDigest contentDigest;
+            try {
+                contentDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            InputStream in = open(url, s3Client);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    contentDigest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return add(name, BinaryUtils.toHex(contentDigest.digest()));
+        }
+
+        private static InputStream open(String url, AmazonS3 s3Client)
+                throws IOException {
+            AmazonS3URI s3Uri = null;
+            try {
+                s3Uri = new AmazonS3URI(url);
+            } catch (IllegalArgumentException e) {
+                // Not an S3 URL
+            }
+            if (s3Uri != null && s3Uri.getBucket() != null
+                    && s3Uri.getKey() != null) {
+                try {
+                    return s3Client.getObject(s3Uri.getBucket(),
+                            s3Uri.getKey()).getObjectContent();
+                } catch (AmazonClientException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            URLConnection connection = new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+            connection.setReadTimeout(READ_TIMEOUT_IN_MS);
+            return connection.getInputStream();
+        }
+
+        Builder addAll(String name, Collection<String> values) {
+            List<String> sorted = new ArrayList<String>(values);
+            Collections.sort(sorted);
+            return add(name, sorted);
+        }
+
+        Builder addParameters(Collection<Parameter> parameters) {
+            List<String> values = new ArrayList<String>();
+            for (Parameter parameter : parameters) {
+                values.add(Boolean.TRUE.equals(parameter.getUsePreviousValue())
+                        ? parameter.getParameterKey() + " (previous value)"
+                        : parameter.getParameterKey() + "=" + parameter.getParameterValue());
+            }
+            return addAll("parameters", values);
+        }
+
+        /**
+         * Adds the tags, if there are any. Leaving out an empty set of tags
+         * lets a stack created without tags match the fingerprint of its
+         * first update, which cannot set tags.
+         */
+        Builder addTags(Collection<Tag> tags) {
+            if (tags.isEmpty()) {
+                return this;
+            }
+            List<String> values = new ArrayList<String>();
+            for (Tag tag : tags) {
+                values.add(tag.getKey() + "=" + tag.getValue());
+            }
+            return addAll("tags", values);
+        }
+
+        String build() {
+            return BinaryUtils.toHex(digest.digest());
+        }
+    }
+}
@@ -14,21 +14,37 @@
  */
 package com.amazonaws.ant.cloudformation;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 import com.amazonaws.AmazonServiceException;
 import org.apache.tools.ant.BuildException;
 
-import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSPollingAntTask;
+import com.amazonaws.ant.BackoffPoller;
 import com.amazonaws.ant.KeyValueNestedElement;
 import com.amazonaws.ant.SimpleNestedElement;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
 import com.amazonaws.services.cloudformation.model.Capability;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
 import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
 import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+public class UpdateStackTask extends AWSPollingAntTask {
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 50;
+    private static final String UPDATE_COMPLETE = "UPDATE_COMPLETE";
 
-public class UpdateStackTask extends AWSAntTask {
     private String stackName;
     private String stackPolicyBody;
     private String stackPolicyURL;
@@ -42,6 +58,14 @@ public class UpdateStackTask extends AWSAntTask {
     private List<Parameter> parameters = new LinkedList<Parameter>();
 
     private Boolean usePreviousTemplate;
+    private boolean useChangeSet = false;
+    private boolean waitForUpdate = false;
+    private File fingerprintFile;
+    private boolean force = false;
+
+    public UpdateStackTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
 
     /**
      * Allows you to add any number of nested preconfigured Capability elements.
@@ -192,6 +216,61 @@ public class UpdateStackTask extends AWSAntTask {
         this.usePreviousTemplate = usePreviousTemplate;
     }
 
+    /**
+     * Set whether to update the stack through a change set. The change set is
+     * created and inspected first; if it contains no changes it is deleted
+     * and the stack is left alone, otherwise it is executed. Stack policies
+     * cannot be applied through a change set, so none of the stack policy
+     * parameters can be set with this. Not required, default is false.
+     *
+     * @param useChangeSet
+     *            Whether to update the stack through a change set.
+     */
+    public void setUseChangeSet(boolean useChangeSet) {
+        this.useChangeSet = useChangeSet;
+    }
+
+    /**
+     * Set whether to wait for the stack to reach UPDATE_COMPLETE after the
+     * update is submitted, following its events. If the stack is left alone
+     * because there is nothing to update, there is nothing to wait for. Not
+     * required, default is false.
+     *
+     * @param waitForUpdate
+     *            Whether to wait for the update to complete.
+     */
+    public void setWaitForUpdate(boolean waitForUpdate) {
+        this.waitForUpdate = waitForUpdate;
+    }
+
+    /**
+     * Set a file in which to record a fingerprint of the template, parameters,
+     * capabilities, notification ARNs and stack policy each stack was last
+     * updated with. If the fingerprint has not changed since, the task skips
+     * the stack without calling CloudFormation at all. A fingerprint is only
+     * recorded once the stack is known to match it: when there was nothing
+     * to update, or when waitForUpdate is set and the update completes. Not
+     * required.
+     *
+     * @param fingerprintFile
+     *            The file to record fingerprints in, which can be shared by
+     *            any number of stacks.
+     */
+    public void setFingerprintFile(File fingerprintFile) {
+        this.fingerprintFile = fingerprintFile;
+    }
+
+    /**
+     * Set whether to update the stack even if its fingerprint has not changed.
+     * Not required, default is false.
+     *
+     * @param force
+     *            Whether to ignore the recorded fingerprint.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
     private void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -218,6 +297,16 @@ public class UpdateStackTask extends AWSAntTask {
             errors.append("You can set stackPolicyDuringUpdateBody or stackPolicyDuringUpdateURL, but not both \n");
         }
 
+        if (useChangeSet
+                && (stackPolicyBody != null || stackPolicyURL != null
+                        || stackPolicyDuringUpdateBody != null || stackPolicyDuringUpdateURL != null)) {
+            areMalformedParams = true;
+            errors.append("Error in parameter configuration: Stack policies cannot be set when useChangeSet is true \n");
+        }
+        if (!checkPollingParams(errors)) {
+            areMalformedParams = true;
+        }
+
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
@@ -225,7 +314,104 @@ public class UpdateStackTask extends AWSAntTask {
 
     public void execute() {
         checkParams();
+        String fingerprint = null;
+        if (fingerprintFile != null) {
+            fingerprint = computeFingerprint();
+            if (fingerprint != null && !force
+                    && fingerprint.equals(lookupFingerprint())) {
+                System.out.println("Stack " + stackName
+                        + " is unchanged since it was last updated (fingerprint "
+                        + fingerprint.substring(0, 12) + "), skipping.");
+                return;
+            }
+        }
         AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
+        BackoffPoller poller = createPoller();
+        StackEventTailer tailer = null;
+        if (waitForUpdate) {
+            // The update may not have logged any event by the first poll, so
+            // the previous operation's events must not be taken for its own
+            tailer = new StackEventTailer(client, stackName);
+            tailer.skipExistingEvents();
+        }
+        if (useChangeSet) {
+            if (!updateWithChangeSet(client, poller)) {
+                recordFingerprint(fingerprint);
+                return;
+            }
+        } else if (!updateStack(client)) {
+            recordFingerprint(fingerprint);
+            return;
+        }
+        StackDescriptionCache.invalidate(getProject(), stackName);
+        if (waitForUpdate) {
+            poller.reset();
+            boolean updated = WaitForStackToReachStateTask
+                    .waitForCloudFormationStackEventsToReachStatus(tailer,
+                            stackName, UPDATE_COMPLETE, null, poller, true);
+            StackDescriptionCache.invalidate(getProject(), stackName);
+            if (!updated) {
+                throw new BuildException("The stack " + stackName
+                        + " did not reach status " + UPDATE_COMPLETE);
+            }
+            System.out.println("Stack " + stackName + " updated.");
+            recordFingerprint(fingerprint);
+        }
+    }
+
+    /**
+     * Returns the fingerprint of this update, or null if a template or policy
+     * URL could not be read, in which case the stack is always updated.
+     */
+    private String computeFingerprint() {
+        AmazonS3Client s3Client = getOrCreateClient(AmazonS3Client.class);
+        try {
+            return new TemplateFingerprints.Builder()
+                    .add("templateBody", templateBody)
+                    .addContentOf("templateURL", templateURL, s3Client)
+                    .add("usePreviousTemplate", usePreviousTemplate)
+                    .addParameters(parameters)
+                    .addAll("capabilities", capabilities)
+                    .addAll("notificationArns", notificationArns)
+                    .add("stackPolicyBody", stackPolicyBody)
+                    .addContentOf("stackPolicyURL", stackPolicyURL,
+                            s3Client).build();
+        } catch (IOException e) {
+            System.out.println("Could not read the template or policy of stack "
+                    + stackName + " to fingerprint it, so it will be updated: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    private String lookupFingerprint() {
+        try {
+            return TemplateFingerprints.lookup(fingerprintFile, stackName);
+        } catch (IOException e) {
+            throw new BuildException("Could not read fingerprint file "
+                    + fingerprintFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void recordFingerprint(String fingerprint) {
+        if (fingerprint == null) {
+            return;
+        }
+        try {
+            TemplateFingerprints.record(fingerprintFile, stackName, fingerprint);
+        } catch (IOException e) {
+            throw new BuildException("Could not write fingerprint file "
+                    + fingerprintFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Submits an UpdateStack request.
+     *
+     * @return Whether an update was started, false if there was nothing to
+     *         update.
+     */
+    private boolean updateStack(AmazonCloudFormationClient client) {
         UpdateStackRequest request = new UpdateStackRequest()
                 .withStackName(stackName).withStackPolicyBody(stackPolicyBody)
                 .withStackPolicyURL(stackPolicyURL)
@@ -249,9 +435,11 @@ public class UpdateStackTask extends AWSAntTask {
             client.updateStack(request);
             System.out.println("Update stack " + stackName
                     + " request submitted.");
+            return true;
         } catch(AmazonServiceException ase) {
             if(ase.getErrorMessage().equals("No updates are to be performed.")) {
                 // this exception is ok
+                return false;
             } else {
                 throw new BuildException("Could not update stack: "
                         + ase.getMessage(), ase);
@@ -262,6 +450,127 @@ public class UpdateStackTask extends AWSAntTask {
         }
     }
 
+    /**
+     * Creates a change set for the update and waits for it to be ready. If it
+     * contains no changes, it is deleted, otherwise it is executed.
+     *
+     * @return Whether the change set was executed, false if there was nothing
+     *         to update.
+     */
+    private boolean updateWithChangeSet(AmazonCloudFormationClient client,
+            BackoffPoller poller) {
+        String changeSetName = "ant-" + System.currentTimeMillis();
+        CreateChangeSetRequest request = new CreateChangeSetRequest()
+                .withStackName(stackName).withChangeSetName(changeSetName)
+                .withTemplateBody(templateBody).withTemplateURL(templateURL)
+                .withUsePreviousTemplate(usePreviousTemplate);
+
+        if (capabilities.size() > 0) {
+            request.setCapabilities(capabilities);
+        }
+        if (parameters.size() > 0) {
+            request.setParameters(parameters);
+        }
+        if (notificationArns.size() > 0) {
+            request.setNotificationARNs(notificationArns);
+        }
+
+        String changeSetId;
+        try {
+            changeSetId = client.createChangeSet(request).getId();
+        } catch (Exception e) {
+            throw new BuildException("Could not create change set for stack "
+                    + stackName + ": " + e.getMessage(), e);
+        }
+        System.out.println("Change set " + changeSetName + " for stack "
+                + stackName + " requested.");
+
+        List<Change> changes = waitForChangeSet(client, changeSetId, poller);
+        if (changes.isEmpty()) {
+            client.deleteChangeSet(new DeleteChangeSetRequest()
+                    .withChangeSetName(changeSetId));
+            System.out.println("No updates are to be performed on stack "
+                    + stackName + ", skipping.");
+            return false;
+        }
+
+        for (Change change : changes) {
+            ResourceChange resourceChange = change.getResourceChange();
+            if (resourceChange != null) {
+                System.out.println(resourceChange.getAction() + " "
+                        + resourceChange.getLogicalResourceId() + " ("
+                        + resourceChange.getResourceType() + ")"
+                        + (resourceChange.getReplacement() == null ? ""
+                                : ", replacement: " + resourceChange.getReplacement()));
+            }
+        }
+        try {
+            client.executeChangeSet(new ExecuteChangeSetRequest()
+                    .withChangeSetName(changeSetId));
+        } catch (Exception e) {
+            throw new BuildException("Could not execute change set "
+                    + changeSetName + ": " + e.getMessage(), e);
+        }
+        System.out.println("Change set " + changeSetName + " with "
+                + changes.size() + " changes executed on stack " + stackName
+                + ".");
+        return true;
+    }
+
+    /**
+     * Waits for the change set to be created and returns all of its changes.
+     * A change set that failed because the update would not change anything
+     * is treated as having no changes.
+     */
+    private List<Change> waitForChangeSet(AmazonCloudFormationClient client,
+            String changeSetId, BackoffPoller poller) {
+        while (true) {
+            try {
+                if (!poller.awaitNextPoll()) {
+                    throw new BuildException("Timed out waiting for change set "
+                            + changeSetId + " to be created");
+                }
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
+            }
+            DescribeChangeSetResult result;
+            try {
+                result = client.describeChangeSet(new DescribeChangeSetRequest()
+                        .withChangeSetName(changeSetId));
+            } catch (AmazonServiceException e) {
+                if (poller.backOffIfThrottled(e)) {
+                    continue;
+                }
+                throw new BuildException("Could not describe change set: "
+                        + e.getMessage(), e);
+            }
+
+            String status = result.getStatus();
+            if (ChangeSetStatus.FAILED.toString().equals(status)) {
+                String reason = result.getStatusReason();
+                if (reason != null
+                        && (reason.contains("didn't contain changes")
+                                || reason.contains("No updates are to be performed"))) {
+                    return new ArrayList<Change>();
+                }
+                throw new BuildException("Change set " + changeSetId
+                        + " failed: " + reason);
+            }
+            if (ChangeSetStatus.CREATE_COMPLETE.toString().equals(status)) {
+                List<Change> changes = new ArrayList<Change>(result.getChanges());
+                String nextToken = result.getNextToken();
+                while (nextToken != null) {
+                    result = client.describeChangeSet(new DescribeChangeSetRequest()
+                            .withChangeSetName(changeSetId)
+                            .withNextToken(nextToken));
+                    changes.addAll(result.getChanges());
+                    nextToken = result.getNextToken();
+                }
+                return changes;
+            }
+        }
+    }
+
     /**
      * Nested element for specifying a Capability. Set the value to the
      * Capability you want to add to the satck.
@@ -14,23 +14,31 @@
  */
 package com.amazonaws.ant.cloudformation;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ant.autoscaling.Constants;
 import org.apache.tools.ant.BuildException;
 
-import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSPollingAntTask;
+import com.amazonaws.ant.BackoffPoller;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.StackEvent;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-public class WaitForStackToReachStateTask extends AWSAntTask {
+public class WaitForStackToReachStateTask extends AWSPollingAntTask {
 
     private static final String FAILED = "FAILED";
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 50;
     private String stackName;
     private String status;
     private String delimiter = Constants.DEFAULT_DELIMITER;
+    private boolean tailEvents = true;
+    private boolean failOnResourceFailure = true;
 
     /**
      * Set the name of this stack. Required.
@@ -58,6 +66,37 @@ public class WaitForStackToReachStateTask extends AWSAntTask {
         this.delimiter = delimiter;
     }
 
+    public WaitForStackToReachStateTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
+
+    /**
+     * Set whether to follow the stack's events while waiting. Each new event
+     * is printed as it happens, and the stack's status is taken from its own
+     * events. If false, only the stack's status is polled. Not required,
+     * default is true.
+     *
+     * @param tailEvents
+     *            Whether to follow the stack's events.
+     */
+    public void setTailEvents(boolean tailEvents) {
+        this.tailEvents = tailEvents;
+    }
+
+    /**
+     * Set whether to fail as soon as any resource of the stack fails, rather
+     * than when the stack itself has finished rolling back. Never applies
+     * when waiting for a rollback status, and failures to delete resources
+     * only count when waiting for a delete status. Only used if tailEvents is
+     * true. Not required, default is true.
+     *
+     * @param failOnResourceFailure
+     *            Whether to fail on the first failed resource.
+     */
+    public void setFailOnResourceFailure(boolean failOnResourceFailure) {
+        this.failOnResourceFailure = failOnResourceFailure;
+    }
+
     /**
      * Waits for the specified stack to reach the specified status. Returns true
      * if it does, returns false if it reaches a status with "FAILED", or if 30
@@ -77,6 +116,10 @@ public class WaitForStackToReachStateTask extends AWSAntTask {
             errors.append("Missing parameter: status is required \n");
         }
 
+        if (!checkPollingParams(errors)) {
+            areMissingParams = true;
+        }
+
         if (areMissingParams) {
             throw new BuildException(errors.toString());
         }
@@ -85,41 +128,150 @@ public class WaitForStackToReachStateTask extends AWSAntTask {
     public void execute() {
         checkParams();
         AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
-        if (!waitForCloudFormationStackToReachStatus(client, stackName, status, delimiter)) {
+        BackoffPoller poller = createPoller();
+        boolean reachedStatus = tailEvents
+                ? waitForCloudFormationStackEventsToReachStatus(client, stackName, status, delimiter, poller,
+                        failOnResourceFailure)
+                : waitForCloudFormationStackToReachStatus(client, stackName, status, delimiter, poller);
+        StackDescriptionCache.invalidate(getProject(), stackName);
+        if (!reachedStatus) {
             throw new BuildException("The stack update or creation failed");
         }
     }
 
+    /**
+     * Waits up to 50 minutes for the stack to reach one of the given
+     * statuses, polling with the default delays.
+     */
     public static boolean waitForCloudFormationStackToReachStatus(
             AmazonCloudFormationClient client, String stackName, String status, String delimiter) {
-        int count = 0;
+        return waitForCloudFormationStackToReachStatus(client, stackName,
+                status, delimiter, new BackoffPoller(TimeUnit.MINUTES
+                        .toMillis(DEFAULT_TIMEOUT_IN_MINUTES)));
+    }
+
+    /**
+     * Waits for the stack to reach one of the given statuses, polling as
+     * paced by the poller until it times out. Returns false if the stack
+     * reaches a status containing "FAILED" first, or if the poller times out.
+     */
+    public static boolean waitForCloudFormationStackToReachStatus(
+            AmazonCloudFormationClient client, String stackName, String status, String delimiter,
+            BackoffPoller poller) {
         Set<String> statuses = new HashSet<String>();
         statuses.addAll((delimiter == null)? Arrays.asList(status): Arrays.asList(status.split(delimiter)));
+        String lastStatus = null;
         while (true) {
-            if (count++ == 100) {
-                System.out
-                        .println(stackName + " never reached state " + status);
+            try {
+                if (!poller.awaitNextPoll()) {
+                    System.out
+                            .println(stackName + " never reached state " + status);
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                System.out.println(e.getMessage());
+                return false;
+            }
+            String stackStatus;
+            try {
+                stackStatus = client
+                        .describeStacks(
+                                new DescribeStacksRequest()
+                                        .withStackName(stackName)).getStacks()
+                        .get(0).getStackStatus();
+            } catch (AmazonServiceException e) {
+                if (poller.backOffIfThrottled(e)) {
+                    continue;
+                }
+                throw e;
+            }
+
+            if (statuses.contains(stackStatus)) {
+                return true;
+            } else if (stackStatus.contains(FAILED)) {
+                System.out.println("The process failed with status " + stackStatus);
                 return false;
             }
+            if (!stackStatus.equals(lastStatus)) {
+                System.out.println(stackName + " is in status " + stackStatus);
+                lastStatus = stackStatus;
+            }
+        }
+    }
+
+    /**
+     * Waits for the stack to reach one of the given statuses by following its
+     * events, printing each new one. Only events newer than those already
+     * seen are fetched on each poll. Returns false if the stack reaches a
+     * status containing "FAILED" first, if the poller times out, or, if
+     * failOnResourceFailure is set, as soon as a resource fails in a way that
+     * means the stack cannot reach the status.
+     */
+    public static boolean waitForCloudFormationStackEventsToReachStatus(
+            AmazonCloudFormationClient client, String stackName, String status, String delimiter,
+            BackoffPoller poller, boolean failOnResourceFailure) {
+        return waitForCloudFormationStackEventsToReachStatus(new StackEventTailer(client, stackName),
+                stackName, status, delimiter, poller, failOnResourceFailure);
+    }
+
+    /**
+     * Waits as above, following the events returned by the given tailer.
+     */
+    static boolean waitForCloudFormationStackEventsToReachStatus(
+            StackEventTailer tailer, String stackName, String status, String delimiter,
+            BackoffPoller poller, boolean failOnResourceFailure) {
+        Set<String> statuses = new HashSet<String>();
+        statuses.addAll((delimiter == null)? Arrays.asList(status): Arrays.asList(status.split(delimiter)));
+        boolean awaitingRollback = false;
+        boolean awaitingDelete = false;
+        for (String awaited : statuses) {
+            awaitingRollback |= awaited.contains("ROLLBACK");
+            awaitingDelete |= awaited.startsWith("DELETE");
+        }
+        while (true) {
             try {
-                Thread.sleep(1000 * 30);
+                if (!poller.awaitNextPoll()) {
+                    System.out
+                            .println(stackName + " never reached state " + status);
+                    return false;
+                }
             } catch (InterruptedException e) {
                 System.out.println(e.getMessage());
                 return false;
             }
-            String stackStatus = client
-                    .describeStacks(
-                            new DescribeStacksRequest()
-                                    .withStackName(stackName)).getStacks()
-                    .get(0).getStackStatus();
+            List<StackEvent> events;
+            try {
+                events = tailer.poll();
+            } catch (AmazonServiceException e) {
+                if (poller.backOffIfThrottled(e)) {
+                    continue;
+                }
+                throw e;
+            }
 
+            String stackStatus = null;
+            for (StackEvent event : events) {
+                System.out.println(StackEventTailer.format(event));
+                String resourceStatus = event.getResourceStatus();
+                if (StackEventTailer.isStackEvent(event)) {
+                    stackStatus = resourceStatus;
+                } else if (failOnResourceFailure && !awaitingRollback
+                        && resourceStatus.endsWith("_" + FAILED)
+                        && (awaitingDelete || !resourceStatus.startsWith("DELETE"))) {
+                    System.out.println("The process failed: resource "
+                            + event.getLogicalResourceId() + " is in status " + resourceStatus);
+                    return false;
+                }
+            }
+            if (stackStatus == null) {
+                continue;
+            }
             if (statuses.contains(stackStatus)) {
                 return true;
             } else if (stackStatus.contains(FAILED)) {
                 System.out.println("The process failed with status " + stackStatus);
                 return false;
             }
-            System.out.println(stackName + " is in status " + stackStatus);
         }
     }
 }
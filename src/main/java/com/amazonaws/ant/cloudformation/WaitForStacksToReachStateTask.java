@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.AWSPollingAntTask;
+import com.amazonaws.ant.BackoffPoller;
+import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.autoscaling.Constants;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * Waits for any number of stacks to reach a status. All the stacks are
+ * checked together on each poll by walking the pages of a single
+ * describeStacks call, so the number of requests does not grow with the
+ * number of stacks.
+ */
+public class WaitForStacksToReachStateTask extends AWSPollingAntTask {
+
+    private static final String FAILED = "FAILED";
+    private static final String DELETE_COMPLETE = "DELETE_COMPLETE";
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 50;
+    private static final Set<String> ROLLBACK_STATUSES = new HashSet<String>(
+            Arrays.asList("ROLLBACK_COMPLETE", "UPDATE_ROLLBACK_COMPLETE"));
+
+    private Set<String> stackNames = new LinkedHashSet<String>();
+    private String stackNamesList;
+    private String status;
+    private String delimiter = Constants.DEFAULT_DELIMITER;
+    private FailurePolicy failurePolicy = FailurePolicy.any;
+
+    public WaitForStacksToReachStateTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
+
+    /**
+     * When to fail the build if stacks fail.
+     */
+    public enum FailurePolicy {
+        /** Fail as soon as any stack fails. */
+        any,
+        /** Wait for every stack to finish, then fail if any of them failed. */
+        all
+    }
+
+    /**
+     * Allows you to add any number of nested preconfigured StackName
+     * elements.
+     *
+     * @param stackName
+     *            a preconfigured StackName object.
+     */
+    public void addConfiguredStackName(StackName stackName) {
+        stackNames.add(stackName.getValue());
+    }
+
+    /**
+     * Set the names of the stacks to wait for, separated by the delimiter.
+     * Either this or at least one nested StackName element is required.
+     *
+     * @param stackNames
+     *            The stack names
+     */
+    public void setStackNames(String stackNames) {
+        this.stackNamesList = stackNames;
+    }
+
+    /**
+     * Set the status to wait for the stacks to reach. Several statuses can be
+     * given, separated by the delimiter; a stack is done once it reaches any
+     * of them. Should not contain "FAILED". Required.
+     *
+     * @param status
+     *            The status to wait for the stacks to reach.
+     */
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * Set the delimiter separating stack names and statuses. Not required,
+     * default is ";".
+     *
+     * @param delimiter
+     *            The delimiter
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Set when to fail the build. With "any", the build fails as soon as one
+     * stack fails. With "all", every stack is waited for and the build then
+     * fails if any of them failed. Not required, default is "any".
+     *
+     * @param failurePolicy
+     *            "any" or "all"
+     */
+    public void setFailurePolicy(String failurePolicy) {
+        try {
+            this.failurePolicy = FailurePolicy.valueOf(failurePolicy);
+        } catch (IllegalArgumentException e) {
+            throw new BuildException("failurePolicy must be any or all", e);
+        }
+    }
+
+    private void checkParams() {
+        boolean areMissingParams = false;
+        StringBuilder errors = new StringBuilder("");
+
+        if (stackNamesList != null) {
+            stackNames.addAll(Arrays.asList(stackNamesList.split(delimiter)));
+        }
+        if (stackNames.isEmpty()) {
+            areMissingParams = true;
+            errors.append("Missing parameter: stackNames or a nested StackName is required \n");
+        }
+        if (status == null) {
+            areMissingParams = true;
+            errors.append("Missing parameter: status is required \n");
+        }
+        if (!checkPollingParams(errors)) {
+            areMissingParams = true;
+        }
+
+        if (areMissingParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    /**
+     * Waits for every stack to reach one of the statuses, printing each
+     * change of status and each stack as it finishes.
+     */
+    public void execute() {
+        checkParams();
+        AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
+        Set<String> statuses = new HashSet<String>(Arrays.asList(status
+                .split(delimiter)));
+        Map<String, String> pending = new LinkedHashMap<String, String>();
+        for (String stackName : stackNames) {
+            pending.put(stackName, null);
+        }
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        BackoffPoller poller = createPoller();
+
+        while (!pending.isEmpty()) {
+            try {
+                if (!poller.awaitNextPoll()) {
+                    throw new BuildException("Timed out waiting for stacks "
+                            + pending.keySet() + " to reach status " + status);
+                }
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
+            }
+            Map<String, String> stackStatuses;
+            try {
+                stackStatuses = describeStackStatuses(client, pending.keySet());
+            } catch (AmazonServiceException e) {
+                if (poller.backOffIfThrottled(e)) {
+                    continue;
+                }
+                throw new BuildException("Could not describe stacks: "
+                        + e.getMessage(), e);
+            }
+
+            for (String stackName : new LinkedHashSet<String>(pending.keySet())) {
+                String stackStatus = stackStatuses.get(stackName);
+                if (stackStatus == null) {
+                    stackStatus = DELETE_COMPLETE;
+                }
+                if (!stackStatus.equals(pending.get(stackName))) {
+                    StackDescriptionCache.invalidate(getProject(), stackName);
+                }
+                if (statuses.contains(stackStatus)) {
+                    System.out.println(stackName + " reached status " + stackStatus);
+                    pending.remove(stackName);
+                } else if (stackStatus.contains(FAILED)
+                        || ROLLBACK_STATUSES.contains(stackStatus)
+                        || stackStatus.equals(DELETE_COMPLETE)) {
+                    System.out.println(stackName + " failed with status " + stackStatus);
+                    pending.remove(stackName);
+                    failures.put(stackName, stackStatus);
+                    if (failurePolicy == FailurePolicy.any) {
+                        throw new BuildException("Stack " + stackName
+                                + " failed with status " + stackStatus);
+                    }
+                } else if (!stackStatus.equals(pending.get(stackName))) {
+                    System.out.println(stackName + " is in status " + stackStatus);
+                    pending.put(stackName, stackStatus);
+                }
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new BuildException(failures.size() + " of "
+                    + stackNames.size() + " stacks failed: " + failures);
+        }
+    }
+
+    /**
+     * Returns the status of each of the given stacks that exists, keyed by
+     * the name or ID it was given as. Pages through the stacks in the region
+     * only until all of them have been found.
+     */
+    private static Map<String, String> describeStackStatuses(
+            AmazonCloudFormationClient client, Set<String> stackNames) {
+        Map<String, String> stackStatuses = new LinkedHashMap<String, String>();
+        String nextToken = null;
+        do {
+            DescribeStacksResult result = client
+                    .describeStacks(new DescribeStacksRequest()
+                            .withNextToken(nextToken));
+            for (Stack stack : result.getStacks()) {
+                if (stackNames.contains(stack.getStackName())) {
+                    stackStatuses.put(stack.getStackName(), stack.getStackStatus());
+                } else if (stackNames.contains(stack.getStackId())) {
+                    stackStatuses.put(stack.getStackId(), stack.getStackStatus());
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null && stackStatuses.size() < stackNames.size());
+        return stackStatuses;
+    }
+
+    /**
+     * Nested element for specifying a stack to wait for. Set the value to the
+     * name or ID of the stack.
+     */
+    public static class StackName extends SimpleNestedElement {
+    }
+}
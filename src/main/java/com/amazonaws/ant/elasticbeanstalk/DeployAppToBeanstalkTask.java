@@ -19,7 +19,6 @@ import java.io.File;
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.elasticbeanstalk.AWSElasticBeanstalkClient;
 import com.amazonaws.services.elasticbeanstalk.model.CreateApplicationVersionRequest;
 import com.amazonaws.services.elasticbeanstalk.model.S3Location;
@@ -164,13 +163,7 @@ public class DeployAppToBeanstalkTask extends AWSAntTask {
         vRequest.setDescription(versionDescription);
         String s3key = key == null ? file.getName() : key;
         if (file != null) {
-            TransferManager tm;
-            if (awsSecretKey != null && awsAccessKeyId != null) {
-                tm = new TransferManager(new BasicAWSCredentials(
-                        awsAccessKeyId, awsSecretKey));
-            } else {
-                tm = new TransferManager();
-            }
+            TransferManager tm = getOrCreateTransferManager(null, null, null);
             System.out.println("Uploading file " + file.getName() + " to S3");
             try {
                 Upload u = tm.upload(bucketName, s3key, file);
@@ -33,4 +33,8 @@ public class Constants {
     // "appId" but it is already set, this sets a reference in the project to
     // true.
     public static final String APP_ID_REFERENCE = "appIdAlreadyUsed";
+
+    // The registry that layerIds, instanceIds and deploymentIds are read
+    // from, so that tasks running in parallel can add to them safely.
+    public static final String ID_REGISTRY_REFERENCE = "idRegistry";
 }
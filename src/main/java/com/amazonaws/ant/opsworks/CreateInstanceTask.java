@@ -14,12 +14,13 @@
  */
 package com.amazonaws.ant.opsworks;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.tools.ant.BuildException;
 
-import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSPollingAntTask;
 import com.amazonaws.ant.SimpleNestedElement;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.Architecture;
@@ -28,9 +29,10 @@ import com.amazonaws.services.opsworks.model.CreateInstanceRequest;
 import com.amazonaws.services.opsworks.model.RootDeviceType;
 import com.amazonaws.services.opsworks.model.StartInstanceRequest;
 
-public class CreateInstanceTask extends AWSAntTask {
+public class CreateInstanceTask extends AWSPollingAntTask {
+
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 30;
 
-    
     private List<String> layerIds = new LinkedList<String>();
     private String stackId;
     private String instanceType;
@@ -48,6 +50,11 @@ public class CreateInstanceTask extends AWSAntTask {
     private boolean ebsOptimized;
     private boolean useProjectLayerIds = true;
     private boolean startOnCreate = true;
+    private String waitForState;
+
+    public CreateInstanceTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
 
     /**
      * Allows you to add a proconfigured nested LayerId element. At least one
@@ -252,9 +259,35 @@ public class CreateInstanceTask extends AWSAntTask {
         this.propertyNameForInstanceId = propertyToSet;
     }
 
+    /**
+     * Set the state to wait for the instance to reach before the task
+     * finishes: "requested", "booting" or "online". Not required, by default
+     * the task only waits for the instance to be visible through
+     * describeInstances.
+     *
+     * @param waitForState
+     *            The state to wait for
+     */
+    public void setWaitForState(String waitForState) {
+        this.waitForState = waitForState;
+    }
+
     public void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
+        if (waitForState != null) {
+            if (!InstanceStateWaiter.STATES.contains(waitForState)) {
+                areMalformedParams = true;
+                errors.append("waitForState must be one of "
+                        + InstanceStateWaiter.STATES + " \n");
+            } else if (!startOnCreate) {
+                areMalformedParams = true;
+                errors.append("Error in parameter configuration: waitForState cannot be set if startOnCreate is false \n");
+            }
+        }
+        if (!checkPollingParams(errors)) {
+            areMalformedParams = true;
+        }
         if (stackId == null) {
             if (!Boolean.TRUE.equals(getProject().getReference(Constants.STACK_ID_REFERENCE))) {
                 stackId = getProject().getProperty(Constants.STACK_ID_PROPERTY);
@@ -292,11 +325,41 @@ public class CreateInstanceTask extends AWSAntTask {
      * this instance is created in the project. If it is the first instance
      * created in this Ant build, instanceId1 is set. If it's the second,
      * instanceId2 is set, etc. The ID is also printed for you to set to your
-     * own property for later use.
+     * own property for later use. The task then waits for the instance to be
+     * visible through describeInstances, and to reach waitForState if it is
+     * set.
      */
     public void execute() {
         checkParams();
         AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        String instanceId;
+        try {
+            instanceId = createInstance(client);
+        } finally {
+            IdRegistry.publish(getProject(), Constants.INSTANCE_IDS_PROPERTY);
+        }
+        if (propertyNameForInstanceId != null) {
+            getProject().setProperty(propertyNameForInstanceId, instanceId);
+        }
+        try {
+            InstanceStateWaiter.waitForInstances(client,
+                    Collections.singleton(instanceId), waitForState, 1,
+                    createPoller());
+        } catch (InterruptedException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates an instance, and starts it if startOnCreate is set. The ID of
+     * the instance is added to the instanceIds list, which the caller must
+     * publish, as soon as the instance is created.
+     * 
+     * @return The ID of the instance
+     * @throws StartFailedException
+     *             If the instance was created but could not be started
+     */
+    String createInstance(AWSOpsWorksClient client) {
         CreateInstanceRequest createInstanceRequest = new CreateInstanceRequest()
                 .withStackId(stackId)
                 .withInstallUpdatesOnBoot(installUpdatesOnBoot)
@@ -316,35 +379,58 @@ public class CreateInstanceTask extends AWSAntTask {
         try {
             instanceId = client.createInstance(createInstanceRequest)
                     .getInstanceId();
-            if (startOnCreate) {
-                client.startInstance(new StartInstanceRequest()
-                        .withInstanceId(instanceId));
-                System.out.println("Starting created instance.");
-            }
-            Thread.sleep(10); // Wait for the instance metadata to populate
-            System.out
-                    .println("Created instance with instanceId "
-                            + instanceId
-                            + ". View the status of this instance at https://console.aws.amazon.com/opsworks/home?#/stack/"
-                            + stackId + "/instances");
         } catch (Exception e) {
             throw new BuildException("Could not create Instance: "
                     + e.getMessage(), e);
         }
+        IdRegistry.add(getProject(), Constants.INSTANCE_IDS_PROPERTY, instanceId);
+        System.out
+                .println("Created instance with instanceId "
+                        + instanceId
+                        + ". View the status of this instance at https://console.aws.amazon.com/opsworks/home?#/stack/"
+                        + stackId + "/instances");
 
-        if (instanceId != null) {
-            if (getProject().getProperty(Constants.INSTANCE_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.INSTANCE_IDS_PROPERTY, instanceId);
-            } else {
-                getProject().setProperty(
-                        Constants.INSTANCE_IDS_PROPERTY,
-                        getProject().getProperty(Constants.INSTANCE_IDS_PROPERTY) + ","
-                                + instanceId);
-            }
-            if (propertyNameForInstanceId != null) {
-                getProject().setProperty(propertyNameForInstanceId, instanceId);
+        if (startOnCreate) {
+            try {
+                client.startInstance(new StartInstanceRequest()
+                        .withInstanceId(instanceId));
+            } catch (Exception e) {
+                throw new StartFailedException(instanceId, e);
             }
+            System.out.println("Starting created instance.");
         }
+        return instanceId;
+    }
+
+    /**
+     * Thrown when an instance was created but could not be started, so that
+     * the caller can still report the instance.
+     */
+    static class StartFailedException extends BuildException {
+        private static final long serialVersionUID = 1L;
+        private final String instanceId;
+
+        StartFailedException(String instanceId, Throwable cause) {
+            super("Created instance " + instanceId
+                    + " but could not start it: " + cause.getMessage(), cause);
+            this.instanceId = instanceId;
+        }
+
+        String getInstanceId() {
+            return instanceId;
+        }
+    }
+
+    String getPropertyNameForInstanceId() {
+        return propertyNameForInstanceId;
+    }
+
+    boolean isStartOnCreate() {
+        return startOnCreate;
+    }
+
+    String getWaitForState() {
+        return waitForState;
     }
 
     /**
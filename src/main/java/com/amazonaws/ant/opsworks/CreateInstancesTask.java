@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+
+/**
+ * Creates any number of identical instances at once. The instance settings
+ * are the same as for create-opsworks-instance. Instances are created and
+ * started on several threads, no faster than a set rate, and the task then
+ * waits for them all to reach a state, checking on all of them together. The
+ * state is "online" unless waitForState is set, or startOnCreate is false, in
+ * which case the instances only have to be visible.
+ */
+public class CreateInstancesTask extends CreateInstanceTask {
+
+    private static final int DEFAULT_CREATE_THREADS = 4;
+    private static final double DEFAULT_INSTANCES_PER_SECOND = 2;
+
+    private int count;
+    private int createThreads = DEFAULT_CREATE_THREADS;
+    private double instancesPerSecond = DEFAULT_INSTANCES_PER_SECOND;
+    private Integer minInstancesReady;
+
+    /**
+     * Set how many instances to create. Required.
+     *
+     * @param count
+     *            The number of instances to create
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Set how many instances to create at the same time. Not required,
+     * default is 4.
+     *
+     * @param createThreads
+     *            The number of threads to create instances on
+     */
+    public void setCreateThreads(int createThreads) {
+        this.createThreads = createThreads;
+    }
+
+    /**
+     * Set the most instances to create per second, across all threads. Not
+     * required, default is 2.
+     *
+     * @param instancesPerSecond
+     *            The rate to create instances at
+     */
+    public void setInstancesPerSecond(double instancesPerSecond) {
+        this.instancesPerSecond = instancesPerSecond;
+    }
+
+    /**
+     * Set how many of the instances must reach the state before the build
+     * continues. The rest are left to finish starting on their own. Not
+     * required, default is all of them.
+     *
+     * @param minInstancesReady
+     *            The number of instances to wait for
+     */
+    public void setMinInstancesReady(int minInstancesReady) {
+        this.minInstancesReady = minInstancesReady;
+    }
+
+    @Override
+    public void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+
+        if (count < 1) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: count is required and must be at least 1 \n");
+        }
+        if (createThreads < 1) {
+            areMalformedParams = true;
+            errors.append("createThreads must be at least 1 \n");
+        }
+        if (instancesPerSecond <= 0) {
+            areMalformedParams = true;
+            errors.append("instancesPerSecond must be greater than 0 \n");
+        }
+        if (minInstancesReady != null
+                && (minInstancesReady < 1 || minInstancesReady > count)) {
+            areMalformedParams = true;
+            errors.append("minInstancesReady must be from 1 to count \n");
+        }
+
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+        super.checkParams();
+    }
+
+    /**
+     * Creates the instances, sets the propertyNameForInstanceId property to
+     * their IDs separated by commas, then waits for them to reach the state.
+     */
+    @Override
+    public void execute() {
+        checkParams();
+        final AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        final RateLimiter rateLimiter = new RateLimiter(instancesPerSecond);
+        Set<String> instanceIds = new LinkedHashSet<String>();
+        Set<String> unstartedIds = new LinkedHashSet<String>();
+        List<Throwable> errors = new ArrayList<Throwable>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                createThreads, count));
+        try {
+            List<Future<String>> creations = new ArrayList<Future<String>>();
+            for (int i = 0; i < count; i++) {
+                creations.add(executor.submit(new Callable<String>() {
+                    public String call() throws InterruptedException {
+                        rateLimiter.acquire();
+                        return createInstance(client);
+                    }
+                }));
+            }
+            for (Future<String> creation : creations) {
+                try {
+                    instanceIds.add(creation.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof StartFailedException) {
+                        unstartedIds.add(((StartFailedException) e.getCause())
+                                .getInstanceId());
+                    }
+                    log("Could not create an instance: "
+                            + e.getCause().getMessage(), e.getCause(),
+                            Project.MSG_WARN);
+                    errors.add(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            IdRegistry.publish(getProject(), Constants.INSTANCE_IDS_PROPERTY);
+        }
+
+        System.out.println("Created " + instanceIds.size() + " of " + count
+                + " instances, " + errors.size() + " failed.");
+        if (!unstartedIds.isEmpty()) {
+            log("Instances " + unstartedIds
+                    + " were created but could not be started, and are left stopped",
+                    Project.MSG_WARN);
+        }
+        if (getPropertyNameForInstanceId() != null && !instanceIds.isEmpty()) {
+            StringBuilder ids = new StringBuilder();
+            for (String instanceId : instanceIds) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(instanceId);
+            }
+            getProject().setProperty(getPropertyNameForInstanceId(),
+                    ids.toString());
+        }
+
+        int required = minInstancesReady == null ? count : minInstancesReady;
+        if (instanceIds.size() < required) {
+            StringBuilder message = new StringBuilder("Could not create "
+                    + required + " instances, " + errors.size() + " of "
+                    + count + " failed: \n");
+            if (!unstartedIds.isEmpty()) {
+                message.append("Instances ").append(unstartedIds)
+                        .append(" were created but could not be started \n");
+            }
+            for (Throwable error : errors) {
+                message.append(error.getMessage()).append(" \n");
+            }
+            BuildException e = new BuildException(message.toString(),
+                    errors.get(0));
+            for (Throwable error : errors.subList(1, errors.size())) {
+                e.addSuppressed(error);
+            }
+            throw e;
+        }
+        if (!errors.isEmpty()) {
+            log("Continuing with " + instanceIds.size() + " of " + count
+                    + " instances, since " + required + " are required",
+                    Project.MSG_WARN);
+        }
+        // Unlike a single instance, started instances are waited on until
+        // they are online unless told otherwise
+        String state = getWaitForState();
+        if (state == null && isStartOnCreate()) {
+            state = "online";
+        }
+        try {
+            InstanceStateWaiter.waitForInstances(client, instanceIds, state,
+                    required, createPoller());
+        } catch (InterruptedException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Spaces out calls evenly so that no more than a set number are made per
+     * second, however many threads make them.
+     */
+    static class RateLimiter {
+        private final long intervalInNanos;
+        private long next = System.nanoTime();
+
+        RateLimiter(double perSecond) {
+            this.intervalInNanos = (long) (1000000000L / perSecond);
+        }
+
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                wait = next - now;
+                next = Math.max(next, now) + intervalInNanos;
+            }
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+        }
+    }
+}
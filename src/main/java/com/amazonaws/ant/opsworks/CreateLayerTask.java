@@ -355,14 +355,8 @@ public class CreateLayerTask extends AWSAntTask {
         }
         System.out.println("Created layer with ID " + layerId);
         if (layerId != null) {
-            if (getProject().getProperty(Constants.LAYER_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.LAYER_IDS_PROPERTY, layerId);
-            } else {
-                getProject().setProperty(
-                        Constants.LAYER_IDS_PROPERTY,
-                        getProject().getProperty(Constants.LAYER_IDS_PROPERTY) + ","
-                                + layerId);
-            }
+            IdRegistry.add(getProject(), Constants.LAYER_IDS_PROPERTY, layerId);
+            IdRegistry.publish(getProject(), Constants.LAYER_IDS_PROPERTY);
             if (propertyNameForLayerId != null) {
                 getProject().setProperty(propertyNameForLayerId, layerId);
             }
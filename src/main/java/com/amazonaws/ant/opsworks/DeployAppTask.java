@@ -179,6 +179,16 @@ public class DeployAppTask extends AWSAntTask {
      * own property for later use.
      */
     public void execute() {
+        createDeployment();
+        IdRegistry.publish(getProject(), Constants.DEPLOYMENT_IDS_PROPERTY);
+    }
+
+    /**
+     * Creates the deployment as execute does, adding its ID to the
+     * deploymentIds list without publishing the list, so that a task
+     * creating many deployments can publish it once they are all created.
+     */
+    void createDeployment() {
         checkParams();
         AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
         CreateDeploymentRequest createDeploymentRequest = new CreateDeploymentRequest()
@@ -203,14 +213,7 @@ public class DeployAppTask extends AWSAntTask {
                     + e.getMessage(), e);
         }
         if (deploymentId != null) {
-            if (getProject().getProperty(Constants.DEPLOYMENT_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.DEPLOYMENT_IDS_PROPERTY, deploymentId);
-            } else {
-                getProject().setProperty(
-                        Constants.DEPLOYMENT_IDS_PROPERTY,
-                        getProject().getProperty(Constants.DEPLOYMENT_IDS_PROPERTY) + ","
-                                + deploymentId);
-            }
+            IdRegistry.add(getProject(), Constants.DEPLOYMENT_IDS_PROPERTY, deploymentId);
             if (propertyNameForDeploymentId != null) {
                 getProject().setProperty(propertyNameForDeploymentId, deploymentId);
                 setDescription(deploymentId);
@@ -218,6 +221,33 @@ public class DeployAppTask extends AWSAntTask {
         }
     }
 
+    /**
+     * Returns whether this deployment deploys an app, and so can be rolled
+     * back.
+     */
+    boolean isDeploy() {
+        return command != null && "deploy".equals(command.getName());
+    }
+
+    /**
+     * Rolls the app back to its previous version on the same instances this
+     * deployment deployed to.
+     * 
+     * @return The ID of the rollback deployment
+     */
+    String rollBack(AWSOpsWorksClient client) {
+        CreateDeploymentRequest createDeploymentRequest = new CreateDeploymentRequest()
+                .withStackId(stackId).withAppId(appId)
+                .withCommand(new DeploymentCommand().withName("rollback"))
+                .withInstanceIds(instanceIds)
+                .withComment("Rollback of deployment " + deploymentId);
+        String rollbackId = client.createDeployment(createDeploymentRequest)
+                .getDeploymentId();
+        System.out.println("Rolling back deployment " + deploymentId + " as "
+                + rollbackId);
+        return rollbackId;
+    }
+
     /**
      * A class to be used as a nested element, specifying the IDs of EC2
      * instances to deploy the app to
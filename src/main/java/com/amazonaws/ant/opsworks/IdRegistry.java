@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+
+/**
+ * Collects the IDs of the layers, instances and deployments created in a
+ * project, for properties such as {@link Constants#INSTANCE_IDS_PROPERTY}
+ * that hold a comma separated list of them. Tasks running at the same time,
+ * such as under &lt;parallel&gt;, can add IDs without losing any, and each
+ * list has its own lock. Reads of the property are answered from the list,
+ * which is only joined when it is read and then kept until the next ID is
+ * added. A task that adds IDs publishes the list once it is done, so the
+ * property is also an ordinary project property for &lt;echoproperties&gt;,
+ * &lt;antcall&gt; and the like.
+ */
+class IdRegistry implements PropertyHelper.PropertyEvaluator {
+
+    private final ConcurrentMap<String, IdList> lists = new ConcurrentHashMap<String, IdList>();
+
+    private IdRegistry() {
+    }
+
+    /**
+     * Adds the ID to the list held by the property. If the property was
+     * already set some other way, its IDs are kept at the head of the list.
+     */
+    static void add(Project project, String property, String id) {
+        IdRegistry registry = forProject(project);
+        IdList list = registry.lists.get(property);
+        if (list == null) {
+            // Not in the registry yet, so this reads any value set directly
+            list = new IdList(project.getProperty(property));
+            IdList existing = registry.lists.putIfAbsent(property, list);
+            if (existing != null) {
+                list = existing;
+            }
+        }
+        list.add(id);
+    }
+
+    /**
+     * Sets the property to the IDs added so far, if any have been.
+     */
+    static void publish(Project project, String property) {
+        IdList list = forProject(project).lists.get(property);
+        if (list != null) {
+            list.publish(project, property);
+        }
+    }
+
+    private static IdRegistry forProject(Project project) {
+        synchronized (project) {
+            IdRegistry registry = project
+                    .getReference(Constants.ID_REGISTRY_REFERENCE);
+            if (registry == null) {
+                registry = new IdRegistry();
+                project.addReference(Constants.ID_REGISTRY_REFERENCE, registry);
+                PropertyHelper.getPropertyHelper(project).add(registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Resolves the properties of the lists in the registry, leaving all other
+     * properties to Ant.
+     */
+    public Object evaluate(String property, PropertyHelper propertyHelper) {
+        IdList list = lists.get(property);
+        return list == null ? null : list.join();
+    }
+
+    private static class IdList {
+        private final List<String> ids = new ArrayList<String>();
+        private String joined;
+
+        IdList(String initialValue) {
+            if (initialValue != null && !initialValue.isEmpty()) {
+                joined = initialValue;
+                for (String id : initialValue.split(",")) {
+                    ids.add(id);
+                }
+            }
+        }
+
+        synchronized void add(String id) {
+            ids.add(id);
+            joined = null;
+        }
+
+        synchronized String join() {
+            if (joined == null && !ids.isEmpty()) {
+                StringBuilder builder = new StringBuilder();
+                for (String id : ids) {
+                    if (builder.length() > 0) {
+                        builder.append(',');
+                    }
+                    builder.append(id);
+                }
+                joined = builder.toString();
+            }
+            return joined;
+        }
+
+        /**
+         * Sets the property while holding the lock, so the property never
+         * goes back to a list missing an ID another thread just added.
+         */
+        synchronized void publish(Project project, String property) {
+            if (!ids.isEmpty()) {
+                project.setProperty(property, join());
+            }
+        }
+    }
+}
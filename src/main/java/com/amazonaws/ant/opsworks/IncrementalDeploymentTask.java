@@ -14,22 +14,37 @@
  */
 package com.amazonaws.ant.opsworks;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.TaskContainer;
 import org.apache.tools.ant.UnknownElement;
 
-import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.AWSPollingAntTask;
+import com.amazonaws.ant.BackoffPoller;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.Deployment;
 import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
 
-public class IncrementalDeploymentTask extends AWSAntTask {
+public class IncrementalDeploymentTask extends AWSPollingAntTask {
+
+    private static final int DEFAULT_TIMEOUT_IN_MINUTES = 60;
+    private static final int DEFAULT_SUBMIT_THREADS = 8;
 
     private LinkedList<DeploymentGroup> deploymentGroups = new LinkedList<DeploymentGroup>();
 
@@ -44,27 +59,51 @@ public class IncrementalDeploymentTask extends AWSAntTask {
         deploymentGroups.add(deploymentGroup);
     }
 
+    public IncrementalDeploymentTask() {
+        super(DEFAULT_TIMEOUT_IN_MINUTES);
+    }
+
     /**
      * Deploys each deployment in each deployment group, waits for the
      * deployments to succeed, then deploys the next group until finished.
      */
     public void execute() {
+        StringBuilder errors = new StringBuilder("");
+        if (!checkPollingParams(errors)) {
+            throw new BuildException(errors.toString());
+        }
         AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
         for (DeploymentGroup deploymentGroup : deploymentGroups) {
-            deploymentGroup.setClient(client);
-            deploymentGroup.deployApps();
+            deploymentGroup.checkParams();
+        }
+        try {
+            for (DeploymentGroup deploymentGroup : deploymentGroups) {
+                deploymentGroup.setClient(client);
+                deploymentGroup.setTask(this);
+                deploymentGroup.deployApps();
+            }
+        } finally {
+            IdRegistry.publish(getProject(), Constants.DEPLOYMENT_IDS_PROPERTY);
         }
     }
 
     /**
      * A class to be used as a nested element. Use to specify groups of
      * deployment tasks sequentially, where the second group must wait for the
-     * first group to succeed in order to deploy, etc.
+     * first group to succeed in order to deploy, etc. A group can instead roll
+     * out its deployments in batches, where each batch is submitted at once
+     * and the next batch starts as soon as the previous one has succeeded.
      */
     public static class DeploymentGroup implements TaskContainer {
         private List<Task> deployAppTasks = new LinkedList<Task>();
         private Set<String> deploymentIds = new HashSet<String>();
         private AWSOpsWorksClient client;
+        private Integer batchSize;
+        private Integer batchPercent;
+        private int maxFailures = 0;
+        private boolean rollbackOnFailure = false;
+        private int submitThreads = DEFAULT_SUBMIT_THREADS;
+        private IncrementalDeploymentTask task;
 
         /**
          * Allows you to add any number of nested DeployAppTask deployment
@@ -98,31 +137,275 @@ public class IncrementalDeploymentTask extends AWSAntTask {
             this.client = client;
         }
 
+        void setTask(IncrementalDeploymentTask task) {
+            this.task = task;
+        }
+
+        /**
+         * Returns a poller to wait for deployments with, set up as the task
+         * says, or with the defaults if the group is used on its own.
+         */
+        private BackoffPoller createPoller() {
+            return task == null ? new BackoffPoller(TimeUnit.MINUTES
+                    .toMillis(DEFAULT_TIMEOUT_IN_MINUTES)) : task.createPoller();
+        }
+
+        /**
+         * Set how many deployments to roll out at a time. If this is set,
+         * batchPercent cannot be set. Not required, by default all the
+         * deployments in the group are rolled out together.
+         * 
+         * @param batchSize
+         *            The number of deployments in each batch
+         */
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Set the percentage of the group's deployments to roll out at a time,
+         * rounded up to at least one deployment. If this is set, batchSize
+         * cannot be set. Not required.
+         * 
+         * @param batchPercent
+         *            The percentage of deployments in each batch, from 1 to
+         *            100
+         */
+        public void setBatchPercent(int batchPercent) {
+            this.batchPercent = batchPercent;
+        }
+
+        /**
+         * Set how many deployments in a batched rollout can fail before the
+         * rollout stops. Only used with batchSize or batchPercent. Not
+         * required, default is 0.
+         * 
+         * @param maxFailures
+         *            The number of failed deployments to tolerate
+         */
+        public void setMaxFailures(int maxFailures) {
+            this.maxFailures = maxFailures;
+        }
+
+        /**
+         * Set whether to roll back every deployment that already succeeded
+         * when a batched rollout stops because more than maxFailures
+         * deployments failed. Only deployments with the "deploy" command are
+         * rolled back. Not required, default is false.
+         * 
+         * @param rollbackOnFailure
+         *            Whether to roll back the rollout when it fails.
+         */
+        public void setRollbackOnFailure(boolean rollbackOnFailure) {
+            this.rollbackOnFailure = rollbackOnFailure;
+        }
+
+        /**
+         * Set how many deployments of the group, or of a batch, to submit at
+         * the same time. Not required, default is 8.
+         * 
+         * @param submitThreads
+         *            The number of deployments to submit at once
+         */
+        public void setSubmitThreads(int submitThreads) {
+            this.submitThreads = submitThreads;
+        }
+
+        void checkParams() {
+            boolean areMalformedParams = false;
+            StringBuilder errors = new StringBuilder("");
+
+            if (batchSize != null && batchPercent != null) {
+                areMalformedParams = true;
+                errors.append("Error in parameter configuration: You can set either batchSize or batchPercent, but not both \n");
+            }
+            if (batchSize != null && batchSize < 1) {
+                areMalformedParams = true;
+                errors.append("batchSize must be at least 1 \n");
+            }
+            if (batchPercent != null && (batchPercent < 1 || batchPercent > 100)) {
+                areMalformedParams = true;
+                errors.append("batchPercent must be from 1 to 100 \n");
+            }
+            if (submitThreads < 1) {
+                areMalformedParams = true;
+                errors.append("submitThreads must be at least 1 \n");
+            }
+            if (maxFailures < 0) {
+                areMalformedParams = true;
+                errors.append("maxFailures cannot be negative \n");
+            }
+
+            if (areMalformedParams) {
+                throw new BuildException(errors.toString());
+            }
+        }
+
         /**
          * Deploys all apps in this deployment group, then waits for all the
          * deployments in the group to succeed. Deployments in a group will run
-         * in parallel.
+         * in parallel, and are submitted up to submitThreads at a time. The
+         * nested tasks are configured on the calling thread first, since Ant
+         * does not configure tasks safely from several threads.
          */
         public void deployApps() {
+            List<DeployAppTask> tasks = new ArrayList<DeployAppTask>();
             for (Task deployAppTask : deployAppTasks) {
-                
-                // This is in case of a rare bug that occurs in some JVM implementations
-                if (deployAppTask instanceof UnknownElement) {
-                    deployAppTask.maybeConfigure();
-                    deployAppTask = ((UnknownElement) deployAppTask).getTask();
+                tasks.add((DeployAppTask) configure(deployAppTask));
+            }
+            if (tasks.isEmpty()) {
+                return;
+            }
+            if (batchSize != null || batchPercent != null) {
+                deployAppsInBatches(tasks);
+                return;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                    submitThreads, tasks.size()));
+            try {
+                List<Throwable> errors = new ArrayList<Throwable>();
+                deploymentIds.addAll(submit(tasks, executor, errors).keySet());
+                if (!errors.isEmpty()) {
+                    throw new BuildException(errors.get(0).getMessage(),
+                            errors.get(0));
                 }
-                if (!deployAppTask.getTaskName().equals("deploy-opsworks-app")) {
-                    throw new BuildException(
-                            "Only <deploy-opsworks-app> elements are supported");
+                waitForDeploymentGroupToSucceed(deploymentIds, client);
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        /**
+         * Submits the deployments on the executor, and waits until all of
+         * them have been submitted.
+         * 
+         * @param errors
+         *            The errors of the deployments that could not be
+         *            submitted are added to this list
+         * @return The deployments that were submitted, keyed by their IDs in
+         *         the order they were given in
+         */
+        private static Map<String, DeployAppTask> submit(
+                List<DeployAppTask> tasks, ExecutorService executor,
+                List<Throwable> errors) throws InterruptedException {
+            List<Future<DeployAppTask>> submissions = new ArrayList<Future<DeployAppTask>>();
+            for (final DeployAppTask task : tasks) {
+                submissions.add(executor.submit(new Callable<DeployAppTask>() {
+                    public DeployAppTask call() {
+                        task.createDeployment();
+                        return task;
+                    }
+                }));
+            }
+            Map<String, DeployAppTask> submitted = new LinkedHashMap<String, DeployAppTask>();
+            for (Future<DeployAppTask> submission : submissions) {
+                try {
+                    DeployAppTask task = submission.get();
+                    submitted.put(task.getDeploymentId(), task);
+                } catch (ExecutionException e) {
+                    System.out.println(e.getCause().getMessage());
+                    errors.add(e.getCause());
                 }
-                deployAppTask.execute();
-                deploymentIds.add(deployAppTask.getDescription());
             }
+            return submitted;
+        }
+
+        private static Task configure(Task deployAppTask) {
+            // This is in case of a rare bug that occurs in some JVM implementations
+            if (deployAppTask instanceof UnknownElement) {
+                deployAppTask.maybeConfigure();
+                deployAppTask = ((UnknownElement) deployAppTask).getTask();
+            }
+            if (!deployAppTask.getTaskName().equals("deploy-opsworks-app")) {
+                throw new BuildException(
+                        "Only <deploy-opsworks-app> elements are supported");
+            }
+            return deployAppTask;
+        }
+
+        /**
+         * Rolls out the deployments in batches. The deployments of a batch are
+         * submitted at the same time, and the next batch starts once all of
+         * them have finished. Once more than maxFailures deployments have
+         * failed, no more batches are started, the deployments that succeeded
+         * are rolled back if rollbackOnFailure is set, and the build fails.
+         */
+        private void deployAppsInBatches(List<DeployAppTask> tasks) {
+            int size = getBatchSize(tasks.size());
+            int batches = (tasks.size() + size - 1) / size;
+            List<DeployAppTask> succeeded = new ArrayList<DeployAppTask>();
+            int failures = 0;
 
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                    submitThreads, Math.min(size, tasks.size())));
             try {
-                waitForDeploymentGroupToSucceed(deploymentIds, client);
+                for (int start = 0; start < tasks.size(); start += size) {
+                    List<DeployAppTask> batch = tasks.subList(start,
+                            Math.min(start + size, tasks.size()));
+                    System.out.println("Deploying batch " + (start / size + 1)
+                            + " of " + batches + " (" + batch.size()
+                            + " deployments)");
+
+                    List<Throwable> errors = new ArrayList<Throwable>();
+                    Map<String, DeployAppTask> submitted = submit(batch,
+                            executor, errors);
+                    failures += errors.size();
+
+                    Set<String> failed = waitForDeployments(
+                            new HashSet<String>(submitted.keySet()), client, false,
+                            createPoller());
+                    for (Map.Entry<String, DeployAppTask> entry : submitted.entrySet()) {
+                        if (failed.contains(entry.getKey())) {
+                            failures++;
+                        } else {
+                            succeeded.add(entry.getValue());
+                        }
+                    }
+                    if (failures > maxFailures) {
+                        if (rollbackOnFailure) {
+                            rollBack(succeeded);
+                        }
+                        throw new BuildException(failures
+                                + " deployments failed, more than the "
+                                + maxFailures + " allowed");
+                    }
+                }
             } catch (InterruptedException e) {
                 throw new BuildException(e.getMessage(), e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        /**
+         * Returns how many of the given number of deployments go in each
+         * batch: batchSize, or batchPercent of them rounded up to at least one.
+         */
+        int getBatchSize(int deployments) {
+            return batchSize != null ? batchSize : Math.max(1,
+                    (int) Math.ceil(deployments * batchPercent / 100.0));
+        }
+
+        /**
+         * Rolls back the given deployments and waits for the rollbacks to
+         * finish, reporting any that fail.
+         */
+        private void rollBack(List<DeployAppTask> deployments)
+                throws InterruptedException {
+            Set<String> rollbackIds = new HashSet<String>();
+            for (DeployAppTask deployment : deployments) {
+                if (deployment.isDeploy()) {
+                    rollbackIds.add(deployment.rollBack(client));
+                }
+            }
+            Set<String> failed = waitForDeployments(rollbackIds, client, false,
+                    createPoller());
+            if (!failed.isEmpty()) {
+                System.out.println("Rollback deployments " + failed
+                        + " failed");
             }
         }
 
@@ -138,34 +421,63 @@ public class IncrementalDeploymentTask extends AWSAntTask {
          */
         public void waitForDeploymentGroupToSucceed(Set<String> deploymentIds,
                 AWSOpsWorksClient client) throws InterruptedException {
-            int count = 0;
-            while (true) {
-                if (deploymentIds.isEmpty()) {
-                    return;
-                }
+            waitForDeployments(deploymentIds, client, true, createPoller());
+        }
 
-                Thread.sleep(1000 * 10);
-                if (count++ > 100) {
-                    throw new BuildException(
-                            "Deployment never failed or succeeded");
+        /**
+         * Waits for the deployments to finish, removing each from the set as
+         * it does. All the remaining deployments are described together on
+         * each poll, and each deployment's status is printed only when it
+         * changes.
+         * 
+         * @param failFast
+         *            Whether to fail the build as soon as a deployment fails
+         * @param poller
+         *            Paces the polls and says when to give up
+         * @return The IDs of the deployments that failed
+         */
+        private static Set<String> waitForDeployments(Set<String> deploymentIds,
+                AWSOpsWorksClient client, boolean failFast, BackoffPoller poller)
+                throws InterruptedException {
+            Set<String> failed = new HashSet<String>();
+            Map<String, String> statuses = new HashMap<String, String>();
+            while (!deploymentIds.isEmpty()) {
+                if (!poller.awaitNextPoll()) {
+                    throw new BuildException("Deployments " + deploymentIds
+                            + " never failed or succeeded");
                 }
 
-                List<Deployment> deployments = client.describeDeployments(
-                        new DescribeDeploymentsRequest()
-                                .withDeploymentIds(deploymentIds))
-                        .getDeployments();
+                List<Deployment> deployments;
+                try {
+                    deployments = client.describeDeployments(
+                            new DescribeDeploymentsRequest()
+                                    .withDeploymentIds(deploymentIds))
+                            .getDeployments();
+                } catch (AmazonServiceException e) {
+                    if (poller.backOffIfThrottled(e)) {
+                        continue;
+                    }
+                    throw e;
+                }
                 for (Deployment deployment : deployments) {
                     String status = deployment.getStatus();
-                    System.out.println(deployment.getDeploymentId() + " : "
-                            + status);
+                    if (!status.equals(statuses.put(deployment.getDeploymentId(), status))) {
+                        System.out.println(deployment.getDeploymentId() + " : "
+                                + status);
+                    }
                     if (status.equalsIgnoreCase("failed")) {
-                        throw new BuildException("Deployment "
-                                + deployment.getDeploymentId() + " failed");
+                        if (failFast) {
+                            throw new BuildException("Deployment "
+                                    + deployment.getDeploymentId() + " failed");
+                        }
+                        failed.add(deployment.getDeploymentId());
+                        deploymentIds.remove(deployment.getDeploymentId());
                     } else if (status.equalsIgnoreCase("successful")) {
                         deploymentIds.remove(deployment.getDeploymentId());
                     }
                 }
             }
+            return failed;
         }
     }
 
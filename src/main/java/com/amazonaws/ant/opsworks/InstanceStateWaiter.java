@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.BackoffPoller;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.Instance;
+import com.amazonaws.services.opsworks.model.ResourceNotFoundException;
+
+/**
+ * Waits for new OpsWorks instances to be visible through describeInstances,
+ * and optionally for those that are starting to get to a state. An instance
+ * that has gone past the state on its way online counts as having reached
+ * it. The instances are described together, in as few requests as possible,
+ * on each poll.
+ */
+class InstanceStateWaiter {
+
+    /**
+     * The states a starting instance goes through, in order, that can be
+     * waited for.
+     */
+    static final List<String> STATES = Arrays.asList("requested", "booting",
+            "online");
+
+    private static final List<String> STARTING_STATES = Arrays.asList(
+            "requested", "pending", "booting", "running_setup", "online");
+    private static final Set<String> FAILED_STATES = new HashSet<String>(
+            Arrays.asList("setup_failed", "start_failed", "connection_lost",
+                    "stopping", "stopped", "shutting_down", "terminating",
+                    "terminated"));
+    private static final int MAX_INSTANCES_PER_DESCRIBE = 100;
+
+    private InstanceStateWaiter() {
+    }
+
+    /**
+     * Waits until at least the required number of instances have reached the
+     * state, printing each instance's changes of state and each instance as
+     * it gets there. With no state, an instance only has to be visible, in
+     * whatever state it is in. The instances are first described right away,
+     * since they are often already visible, and only then on the poller's
+     * schedule.
+     *
+     * @return The IDs of the instances that reached the state, in the order
+     *         they did
+     * @throws BuildException
+     *             If so many instances fail that the required number can no
+     *             longer be reached, or if the poller times out
+     */
+    static Set<String> waitForInstances(AWSOpsWorksClient client,
+            Set<String> instanceIds, String state, int required,
+            BackoffPoller poller) throws InterruptedException {
+        int target = state == null ? -1 : STARTING_STATES.indexOf(state);
+        String goal = state == null ? "visible" : "state " + state;
+        Set<String> pending = new LinkedHashSet<String>(instanceIds);
+        Set<String> ready = new LinkedHashSet<String>();
+        Set<String> failed = new LinkedHashSet<String>();
+        Map<String, String> statuses = new HashMap<String, String>();
+
+        boolean firstPoll = true;
+        while (ready.size() < required) {
+            if (firstPoll) {
+                firstPoll = false;
+            } else if (!poller.awaitNextPoll()) {
+                throw new BuildException("Only " + ready.size() + " of "
+                        + instanceIds.size() + " instances reached " + goal
+                        + " in time, " + required + " were required");
+            }
+            List<Instance> instances;
+            try {
+                instances = describeInstances(client, pending);
+            } catch (ResourceNotFoundException e) {
+                // Just created, and not visible yet
+                continue;
+            } catch (AmazonServiceException e) {
+                if (poller.backOffIfThrottled(e)) {
+                    continue;
+                }
+                throw e;
+            }
+
+            for (Instance instance : instances) {
+                String instanceId = instance.getInstanceId();
+                String status = instance.getStatus();
+                if (!status.equals(statuses.put(instanceId, status))) {
+                    System.out.println(instanceId + " : " + status);
+                }
+                if (state == null || STARTING_STATES.indexOf(status) >= target) {
+                    pending.remove(instanceId);
+                    ready.add(instanceId);
+                    System.out.println(instanceId + " reached " + goal + " ("
+                            + ready.size() + " of " + instanceIds.size() + ")");
+                } else if (FAILED_STATES.contains(status)) {
+                    pending.remove(instanceId);
+                    failed.add(instanceId);
+                }
+            }
+            if (ready.size() + pending.size() < required) {
+                throw new BuildException("Instances " + failed
+                        + " failed, so " + required + " of "
+                        + instanceIds.size() + " cannot reach " + goal);
+            }
+        }
+        return ready;
+    }
+
+    private static List<Instance> describeInstances(AWSOpsWorksClient client,
+            Set<String> instanceIds) {
+        List<String> ids = new ArrayList<String>(instanceIds);
+        List<Instance> instances = new ArrayList<Instance>();
+        for (int start = 0; start < ids.size(); start += MAX_INSTANCES_PER_DESCRIBE) {
+            instances.addAll(client.describeInstances(
+                    new DescribeInstancesRequest().withInstanceIds(ids.subList(
+                            start, Math.min(start + MAX_INSTANCES_PER_DESCRIBE,
+                                    ids.size())))).getInstances());
+        }
+        return instances;
+    }
+}
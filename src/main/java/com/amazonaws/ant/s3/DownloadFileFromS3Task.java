@@ -16,29 +16,66 @@ package com.amazonaws.ant.s3;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
 
 /**
  * Ant task for Downloading a file from a specified bucket in S3. You have two
  * main options for downloading. You may either specify a key and download the
  * file in your bucket in S3 with that key (To a target file if you wish to
  * specify it), or specify a prefix and download all files from your bucket in
- * S3 with that prefix to a specified directory.
+ * S3 with that prefix to a specified directory. When downloading by prefix,
+ * the objects can be fetched concurrently by setting the number of threads.
+ * Large objects can also be fetched over several connections at once, each
+ * downloading a different byte range of the object.
  */
 public class DownloadFileFromS3Task extends AWSAntTask {
+    private static final int DEFAULT_MAX_KEYS = 1000;
+    private static final long DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
     private String bucketName;
     private String dir;
     private String key;
     private String keyPrefix;
     private File file;
+    private String delimiter;
+    private int threads = 1;
+    private Integer maxKeys;
+    private int connections = 1;
+    private long partSize = DEFAULT_PART_SIZE;
+    private boolean skipUnchanged;
+    private File manifestFile;
+    private UploadManifest manifest;
 
     /**
      * Specify the name of your S3 bucket
@@ -95,6 +132,96 @@ public class DownloadFileFromS3Task extends AWSAntTask {
         this.dir = dir;
     }
 
+    /**
+     * Set how many objects to download at the same time when downloading by
+     * prefix. Not required, default is 1.
+     * 
+     * @param threads
+     *            The maximum number of objects to download concurrently
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set a delimiter to group keys by when downloading by prefix. Not
+     * required. If set, only objects directly under the key prefix are
+     * downloaded; keys that contain the delimiter after the prefix are
+     * skipped.
+     * 
+     * @param delimiter
+     *            The delimiter to group keys by, for example "/"
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Set how many keys to request per listing page when downloading by
+     * prefix. Not required, defaults to the S3 default of 1000.
+     * 
+     * @param maxKeys
+     *            The maximum number of keys to return in each listing page
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Set how many connections to download a single object over. Objects
+     * larger than the part size are split into byte ranges that are fetched
+     * concurrently and written straight into place in the target file. When
+     * downloading by prefix, this applies to each object, so up to threads
+     * times connections requests may be in flight. Not required, default is
+     * 1.
+     * 
+     * @param connections
+     *            The maximum number of byte ranges of an object to download
+     *            concurrently
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Set the size in bytes of each byte range when downloading an object
+     * over several connections. Not required, default is 16 MB.
+     * 
+     * @param partSize
+     *            The size in bytes of each range to download
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Set whether to skip objects whose local file already has the same
+     * content. When downloading by prefix, the ETag and size in the listing
+     * are compared with the local file without any further requests. When
+     * downloading a single key, the download is made conditional on the
+     * object not matching the local file. Not required, default is false.
+     * 
+     * @param skipUnchanged
+     *            Whether to skip objects that are already up to date locally
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Specify a file in which to record the ETag, size and modification time
+     * of each downloaded file. A local file that has not changed since it was
+     * recorded is compared by its recorded ETag instead of being hashed, which
+     * also allows objects uploaded in parts to be skipped. Only used when
+     * skipUnchanged is true. Not required.
+     * 
+     * @param manifestFile
+     *            The file to store the download manifest in
+     */
+    public void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
     public void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -118,52 +245,340 @@ public class DownloadFileFromS3Task extends AWSAntTask {
             areMalformedParams = true;
             errors.append("If keyPrefix is set, then dir must be set to specify what directory to download the files to. \n");
         }
+        if (threads < 1) {
+            areMalformedParams = true;
+            errors.append("threads must be at least 1 \n");
+        }
+        if (maxKeys != null && maxKeys.intValue() < 1) {
+            areMalformedParams = true;
+            errors.append("maxKeys must be at least 1 \n");
+        }
+        if (manifestFile != null && !skipUnchanged) {
+            areMalformedParams = true;
+            errors.append("manifestFile can only be set if skipUnchanged is true \n");
+        }
+        if (connections < 1) {
+            areMalformedParams = true;
+            errors.append("connections must be at least 1 \n");
+        }
+        if (partSize < 1) {
+            areMalformedParams = true;
+            errors.append("partSize must be at least 1 \n");
+        }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
     }
 
-    private void downloadObjectToFile(AmazonS3Client client, File file, String key) {
+    /**
+     * Downloads the object to a temporary file next to the target file, and
+     * moves it into place only once the download is complete, so that an
+     * interrupted build never leaves a partial file behind under the target
+     * name.
+     */
+    private void downloadObjectToFile(AmazonS3Client client, File file,
+            String key, S3ObjectSummary remote) {
+        String localETag = null;
+        if (skipUnchanged) {
+            try {
+                localETag = getLocalETag(file, key, remote);
+            } catch (IOException e) {
+                throw new BuildException("Could not hash file " + file + ": "
+                        + e.getMessage(), e);
+            }
+            if (localETag != null && remote != null
+                    && localETag.equals(remote.getETag())) {
+                System.out.println("Skipping unchanged S3Object with key "
+                        + key);
+                recordDownload(key, file, localETag);
+                return;
+            }
+        }
         System.out.println("Downloading S3Object with key " + key
                 + " from bucket " + bucketName + " to file " + file + "...");
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile;
         try {
-            if (file.getParentFile() != null) {
-                file.getParentFile().mkdirs();
-            }
-            file.createNewFile();
+            parent.mkdirs();
+            // The prefix must be at least three characters long
+            tempFile = File.createTempFile("." + file.getName() + "-",
+                    ".part", parent);
         } catch (IOException e) {
             throw new BuildException(
                     "IOException while attempting to create new file " + file + ": "
                             + e.getMessage());
         }
         try {
-            client.getObject(new GetObjectRequest(bucketName, key), file);
+            ObjectMetadata metadata;
+            if (connections > 1) {
+                metadata = downloadObjectInRanges(client, tempFile, key,
+                        localETag);
+            } else {
+                GetObjectRequest request = new GetObjectRequest(bucketName,
+                        key);
+                if (localETag != null) {
+                    request.withNonmatchingETagConstraint(localETag);
+                }
+                metadata = client.getObject(request, tempFile);
+            }
+            if (metadata == null) {
+                System.out.println("S3Object with key " + key
+                        + " is unchanged, skipping");
+                recordDownload(key, file, localETag);
+                return;
+            }
+            moveIntoPlace(tempFile, file);
+            recordDownload(key, file, metadata.getETag());
         } catch (Exception e) {
             throw new BuildException(
                     "Exception while trying to download object: " + bucketName + "/" + key + ": " + " to file " + file
                             + e.getMessage(), e);
+        } finally {
+            tempFile.delete();
         }
         System.out.println("Download successful");
     }
 
-    public void execute() {
-        AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
-        if (key != null) {
-            File targetFile = file == null ? new File(key) : file;
-            downloadObjectToFile(client, targetFile, key);
-        } else {
-            ObjectListing objectListing = client.listObjects(bucketName);
+    private void recordDownload(String key, File file, String eTag) {
+        if (manifest != null) {
+            synchronized (manifest) {
+                manifest.put(key, file, null, eTag);
+            }
+        }
+    }
+
+    /**
+     * Returns the ETag the object would have if it had the same content as
+     * the local file, or null if that cannot be worked out cheaply. A file
+     * recorded in the manifest and unchanged since has the recorded ETag.
+     * Otherwise the MD5 of the file is used, which is the ETag of any object
+     * not uploaded in parts; if the listing shows a different size or a
+     * multipart ETag, the file is not hashed at all.
+     */
+    private String getLocalETag(File file, String key, S3ObjectSummary remote)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        if (manifest != null) {
+            UploadManifest.Entry entry;
+            synchronized (manifest) {
+                entry = manifest.get(key);
+            }
+            if (entry != null && entry.matches(file)) {
+                return entry.getETag();
+            }
+        }
+        if (remote != null && (remote.getSize() != file.length()
+                || remote.getETag() == null || remote.getETag().contains("-"))) {
+            return null;
+        }
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(file));
+    }
+
+    /**
+     * Downloads the object into the given file over up to the configured
+     * number of connections. The file is sized up front, and each range is
+     * written at its own offset, so ranges can complete in any order. Every
+     * range is requested with the ETag seen at the start, so an object that
+     * is replaced part way through fails the download rather than mixing two
+     * versions. Objects no larger than one part are fetched in one request,
+     * which is retried if the object is replaced before it is fetched.
+     * Returns the metadata of the object, or null without downloading it if
+     * its ETag is the given local ETag.
+     */
+    private ObjectMetadata downloadObjectInRanges(final AmazonS3Client client,
+            File file, final String key, String localETag) throws IOException,
+            InterruptedException {
+        ObjectMetadata metadata;
+        for (int attempt = 1;; attempt++) {
+            metadata = client.getObjectMetadata(bucketName, key);
+            if (metadata.getETag() != null
+                    && metadata.getETag().equals(localETag)) {
+                return null;
+            }
+            if (metadata.getContentLength() > partSize) {
+                break;
+            }
+            ObjectMetadata downloaded = client.getObject(new GetObjectRequest(
+                    bucketName, key).withMatchingETagConstraint(metadata
+                    .getETag()), file);
+            if (downloaded != null) {
+                return downloaded;
+            }
+            // The object was replaced after it was described
+            if (attempt == MAX_DOWNLOAD_ATTEMPTS) {
+                throw new IOException("Object changed during download "
+                        + attempt + " times");
+            }
+            System.out.println("S3Object with key " + key
+                    + " changed during download, retrying");
+        }
+        final long size = metadata.getContentLength();
+        final String eTag = metadata.getETag();
+
+        int parts = (int) ((size + partSize - 1) / partSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                connections, parts));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            final FileChannel channel = randomAccessFile.getChannel();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(parts);
+            for (long start = 0; start < size; start += partSize) {
+                final long rangeStart = start;
+                final long rangeEnd = Math.min(size, start + partSize) - 1;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        downloadRange(client, channel, key, eTag, rangeStart,
+                                rangeEnd);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage(),
+                            e.getCause());
+                }
+            }
+            channel.force(false);
+        } finally {
+            executor.shutdownNow();
+            randomAccessFile.close();
+        }
+        verifyDownload(file, key, metadata);
+        return metadata;
+    }
+
+    /**
+     * Downloads the bytes from start to end inclusive and writes them at the
+     * same offset in the channel.
+     */
+    private void downloadRange(AmazonS3Client client, FileChannel channel,
+            String key, String eTag, long start, long end) throws IOException {
+        S3Object object = client.getObject(new GetObjectRequest(bucketName,
+                key).withRange(start, end).withMatchingETagConstraint(eTag));
+        if (object == null) {
+            throw new IOException("Object changed during download");
+        }
+        InputStream in = object.getObjectContent();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+            if (position != end + 1) {
+                throw new IOException("Expected " + (end + 1 - start)
+                        + " bytes at offset " + start + " but got "
+                        + (position - start));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks the MD5 of a file downloaded in ranges. A single-part ETag is
+     * the MD5 of the object; a multipart ETag is not, so the MD5 stored by a
+     * sync upload is used instead. If neither is available, only the size of
+     * each range has been checked.
+     */
+    private void verifyDownload(File file, String key, ObjectMetadata metadata)
+            throws IOException {
+        String expectedMd5 = metadata.getETag();
+        if (expectedMd5 == null || expectedMd5.contains("-")) {
+            expectedMd5 = metadata
+                    .getUserMetaDataOf(UploadFileSetToS3Task.CONTENT_MD5_METADATA);
+        }
+        if (expectedMd5 == null) {
+            return;
+        }
+        String actualMd5 = BinaryUtils.toHex(Md5Utils.computeMD5Hash(file));
+        if (!actualMd5.equalsIgnoreCase(expectedMd5)) {
+            throw new IOException("MD5 of downloaded file " + actualMd5
+                    + " does not match " + expectedMd5 + " for " + key);
+        }
+    }
+
+    private void moveIntoPlace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Downloads every object in the bucket whose key begins with the key
+     * prefix, using up to the configured number of threads. The prefix is
+     * filtered by S3, and the listing runs ahead of the downloads by at most
+     * one page, so workers start on the first page while the next one is
+     * still being fetched. A failed object does not stop the others; all
+     * failures are reported together once every download has finished.
+     */
+    private void downloadObjectsWithPrefix(final AmazonS3Client client) {
+        final List<String> failures = Collections
+                .synchronizedList(new LinkedList<String>());
+        final Semaphore backlog = new Semaphore(threads
+                + (maxKeys == null ? DEFAULT_MAX_KEYS : maxKeys.intValue()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int submitted = 0;
+        try {
+            String dirPath = new File(dir).getCanonicalPath();
+            if (!dirPath.endsWith(File.separator)) {
+                dirPath += File.separator;
+            }
+            ObjectListing objectListing = client
+                    .listObjects(new ListObjectsRequest()
+                            .withBucketName(bucketName).withPrefix(keyPrefix)
+                            .withDelimiter(delimiter).withMaxKeys(maxKeys));
 
             while (true) {
-                for (Iterator<?> iterator = objectListing.getObjectSummaries()
-                        .iterator(); iterator.hasNext();) {
-                    S3ObjectSummary objectSummary = (S3ObjectSummary) iterator
-                            .next();
-                    String key = objectSummary.getKey();
-                    if (key.startsWith(keyPrefix)) {
-                        downloadObjectToFile(client, new File(dir
-                                + File.pathSeparator + key), key);
+                for (S3ObjectSummary objectSummary : objectListing
+                        .getObjectSummaries()) {
+                    final S3ObjectSummary remote = objectSummary;
+                    final String key = objectSummary.getKey();
+                    final File targetFile = new File(dir, key);
+                    if (!targetFile.getCanonicalPath().startsWith(dirPath)) {
+                        // A key such as ../file would be written outside dir
+                        failures.add(key + ": refusing to download to "
+                                + targetFile + ", which is outside " + dir);
+                        submitted++;
+                        continue;
                     }
+                    if (key.endsWith("/")) {
+                        // A folder placeholder, not a file
+                        targetFile.mkdirs();
+                        continue;
+                    }
+                    backlog.acquire();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                downloadObjectToFile(client, targetFile, key,
+                                        remote);
+                            } catch (BuildException e) {
+                                failures.add(key + ": " + e.getMessage());
+                            } catch (RuntimeException e) {
+                                // Anything else would be lost with the thread
+                                failures.add(key + ": " + e);
+                            } finally {
+                                backlog.release();
+                            }
+                        }
+                    });
+                    submitted++;
                 }
 
                 if (objectListing.isTruncated()) {
@@ -173,6 +588,56 @@ public class DownloadFileFromS3Task extends AWSAntTask {
                     break;
                 }
             }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new BuildException("Interrupted while downloading objects with prefix "
+                    + keyPrefix, e);
+        } catch (IOException e) {
+            throw new BuildException("Could not resolve the target of objects with prefix "
+                    + keyPrefix + " in " + dir + ": " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            StringBuilder errors = new StringBuilder(failures.size() + " of "
+                    + submitted + " objects with prefix " + keyPrefix
+                    + " failed to download: \n");
+            for (String failure : failures) {
+                errors.append(failure).append(" \n");
+            }
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        if (manifestFile != null) {
+            try {
+                manifest = UploadManifest.load(manifestFile, bucketName, this);
+            } catch (IOException e) {
+                throw new BuildException("Could not read download manifest "
+                        + manifestFile + ": " + e.getMessage(), e);
+            }
+        }
+        try {
+            if (key != null) {
+                File targetFile = file == null ? new File(key) : file;
+                downloadObjectToFile(client, targetFile, key, null);
+            } else {
+                downloadObjectsWithPrefix(client);
+            }
+        } finally {
+            if (manifest != null) {
+                try {
+                    manifest.save();
+                } catch (IOException e) {
+                    throw new BuildException("Could not write download manifest "
+                            + manifestFile + ": " + e.getMessage(), e);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+/**
+ * A directory of saved multipart upload state, one file per upload. A
+ * checkpoint is written as soon as TransferManager has started a multipart
+ * upload, and holds the upload ID that S3 needs to resume it. The checkpoint
+ * name is derived from the bucket, key, size and modification time of the
+ * file, so a file that changed since its upload was interrupted is uploaded
+ * from scratch rather than resumed.
+ */
+class UploadCheckpoints {
+
+    private static final String SUFFIX = ".upload";
+
+    private final File dir;
+    private final String bucketName;
+
+    UploadCheckpoints(File dir, String bucketName) {
+        this.dir = dir;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Returns the checkpoint file for uploading the given file to the given
+     * key. The file may not exist.
+     */
+    File getCheckpoint(String key, File file) {
+        String id = bucketName + "\n" + key + "\n" + file.length() + "\n"
+                + file.lastModified();
+        return new File(dir, BinaryUtils.toHex(Md5Utils.computeMD5Hash(
+                id.getBytes(StandardCharsets.UTF_8))) + SUFFIX);
+    }
+
+    /**
+     * Reads the upload state saved in the given checkpoint.
+     */
+    PersistableUpload read(File checkpoint) throws IOException {
+        InputStream in = new FileInputStream(checkpoint);
+        try {
+            return PersistableTransfer.deserializeFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a listener that saves the state of the upload it is attached to
+     * in the given checkpoint once the multipart upload has been started.
+     * Uploads that are sent in a single request never produce any state.
+     */
+    S3ProgressListener newWriter(final File checkpoint) {
+        return new S3ProgressListener() {
+            public void onPersistableTransfer(PersistableTransfer persistableTransfer) {
+                try {
+                    write(checkpoint, persistableTransfer);
+                } catch (IOException e) {
+                    // the upload itself is unaffected, it just cannot be resumed
+                    checkpoint.delete();
+                }
+            }
+
+            public void progressChanged(ProgressEvent progressEvent) {
+            }
+        };
+    }
+
+    /**
+     * Deletes every checkpoint last written before the given time, and
+     * returns how many were deleted.
+     */
+    int deleteOlderThan(final long time) {
+        File[] checkpoints = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX)
+                        && file.lastModified() < time;
+            }
+        });
+        int deleted = 0;
+        if (checkpoints != null) {
+            for (File checkpoint : checkpoints) {
+                if (checkpoint.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes the state to a temporary file first, so that a build killed
+     * while writing never leaves a truncated checkpoint behind.
+     */
+    private void write(File checkpoint, PersistableTransfer persistableTransfer)
+            throws IOException {
+        dir.mkdirs();
+        File temp = File.createTempFile(checkpoint.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                persistableTransfer.serialize(out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), checkpoint.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), checkpoint.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -16,36 +16,70 @@
 package com.amazonaws.ant.s3;
 
 import java.io.File;
-import java.nio.file.Path;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import com.amazonaws.event.ProgressEvent;
-import com.amazonaws.event.ProgressListener;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.MultipleFileUpload;
-import com.amazonaws.services.s3.transfer.PersistableTransfer;
-import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.services.s3.transfer.Transfer.TransferState;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.json.Jackson;
+import com.amazonaws.util.Md5Utils;
 
 /**
  * Ant Task for uploading a fileset or filesets to S3.
  */
 public class UploadFileSetToS3Task extends AWSAntTask
 {
+    /**
+     * User metadata key holding the hex MD5 of files uploaded in sync mode.
+     * Multipart uploads do not have an MD5 ETag, so this is what they are
+     * compared against on the next sync, and what downloads verify against.
+     */
+    static final String CONTENT_MD5_METADATA = "ant-content-md5";
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
     private Vector<FileSet> filesets = new Vector<FileSet>();
     private String bucketName;
     private String keyPrefix;
     private boolean printStatusUpdates = false;
     private boolean continueOnFail = false;
+    private boolean sync = false;
+    private boolean deleteOrphans = false;
+    private File manifestFile;
+    private Integer uploadThreads;
+    private Long multipartUploadThreshold;
+    private Long minimumUploadPartSize;
+    private File checkpointDir;
+    private Integer abortUploadsOlderThanHours;
     private int statusUpdatePeriodInMs = 500;
 
     /**
@@ -97,8 +131,9 @@ public class UploadFileSetToS3Task extends AWSAntTask
 
     /**
      * Specify whether to print updates about your upload. The update will
-     * consist of how many bytes have been uploaded versus how many are to be
-     * uploaded in total. Not required, default is false.
+     * consist of how many bytes and files have been uploaded versus how many
+     * are to be uploaded in total, the throughput so far, and the estimated
+     * time left. Not required, default is false.
      *
      * @param printStatusUpdates Whether you want the task to print status updates about your
      *                           upload.
@@ -121,6 +156,110 @@ public class UploadFileSetToS3Task extends AWSAntTask
         this.statusUpdatePeriodInMs = statusUpdatePeriodInMs;
     }
 
+    /**
+     * Specify whether to only upload files that are new or have changed since
+     * the last upload. The destination prefix is listed once, and a file is
+     * skipped if an object with the same key, size and content MD5 already
+     * exists. Not required, default is false.
+     *
+     * @param sync Whether to skip files that are already up to date in S3.
+     */
+    public void setSync(boolean sync)
+    {
+        this.sync = sync;
+    }
+
+    /**
+     * Specify whether to delete objects under the key prefix that do not
+     * correspond to any file in the filesets. Only used when sync is true.
+     * Not required, default is false.
+     *
+     * @param deleteOrphans Whether to delete remote objects with no local file.
+     */
+    public void setDeleteOrphans(boolean deleteOrphans)
+    {
+        this.deleteOrphans = deleteOrphans;
+    }
+
+    /**
+     * Specify a file in which to keep a record of the files uploaded in sync
+     * mode. Files whose modification time and size have not changed since they
+     * were recorded, and whose objects have not changed in S3, are skipped
+     * without being hashed. Only used when sync is true. Not required.
+     *
+     * @param manifestFile The file to store the upload manifest in, for
+     *                     example ${basedir}/.upload-to-s3.manifest
+     */
+    public void setManifestFile(File manifestFile)
+    {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Specify how many threads to upload with. Uploads in the same build that
+     * use the same settings share one pool of threads. Not required, defaults
+     * to the TransferManager default of 10.
+     *
+     * @param uploadThreads The number of threads to upload with.
+     */
+    public void setUploadThreads(int uploadThreads)
+    {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * Specify the size in bytes above which a file is uploaded in parts. Not
+     * required, defaults to the TransferManager default of 16 MB.
+     *
+     * @param multipartUploadThreshold The size in bytes above which to use a
+     *                                 multipart upload.
+     */
+    public void setMultipartUploadThreshold(long multipartUploadThreshold)
+    {
+        this.multipartUploadThreshold = multipartUploadThreshold;
+    }
+
+    /**
+     * Specify the minimum size in bytes of each part of a multipart upload.
+     * Not required, defaults to the TransferManager default of 5 MB.
+     *
+     * @param minimumUploadPartSize The minimum size in bytes of each part.
+     */
+    public void setMinimumUploadPartSize(long minimumUploadPartSize)
+    {
+        this.minimumUploadPartSize = minimumUploadPartSize;
+    }
+
+    /**
+     * Specify a directory in which to save the state of each multipart
+     * upload while it is in progress. If the build is killed, the next upload
+     * of the same, unchanged file resumes from the parts already in S3
+     * instead of starting over. Checkpoints are deleted once their upload
+     * completes. Not required.
+     *
+     * @param checkpointDir The directory to keep upload checkpoints in, for
+     *                      example ${basedir}/.upload-to-s3.checkpoints
+     */
+    public void setCheckpointDir(File checkpointDir)
+    {
+        this.checkpointDir = checkpointDir;
+    }
+
+    /**
+     * Specify an age in hours after which incomplete multipart uploads are
+     * aborted before uploading. This applies to every incomplete upload in
+     * the bucket, not only those started by this task, and frees the storage
+     * held by their parts. Checkpoints older than this are deleted as well.
+     * Not required, by default no uploads are aborted.
+     *
+     * @param abortUploadsOlderThanHours The age in hours after which to abort
+     *                                   incomplete multipart uploads.
+     */
+    public void setAbortUploadsOlderThanHours(int abortUploadsOlderThanHours)
+    {
+        this.abortUploadsOlderThanHours = abortUploadsOlderThanHours;
+    }
+
     /**
      * Verifies that all necessary parameters were set
      */
@@ -138,6 +277,26 @@ public class UploadFileSetToS3Task extends AWSAntTask
             areMalformedParams = true;
             errors.append("Missing parameter: you must specify at least one fileset \n");
         }
+        if (deleteOrphans && !sync)
+        {
+            areMalformedParams = true;
+            errors.append("deleteOrphans can only be set if sync is true \n");
+        }
+        if (manifestFile != null && !sync)
+        {
+            areMalformedParams = true;
+            errors.append("manifestFile can only be set if sync is true \n");
+        }
+        if (uploadThreads != null && uploadThreads.intValue() < 1)
+        {
+            areMalformedParams = true;
+            errors.append("uploadThreads must be at least 1 \n");
+        }
+        if (abortUploadsOlderThanHours != null && abortUploadsOlderThanHours.intValue() < 1)
+        {
+            areMalformedParams = true;
+            errors.append("abortUploadsOlderThanHours must be at least 1 \n");
+        }
         if (areMalformedParams)
         {
             throw new BuildException(errors.toString());
@@ -145,58 +304,578 @@ public class UploadFileSetToS3Task extends AWSAntTask
     }
 
     /**
-     * Uploads files to S3
+     * Returns the key prefix the same way TransferManager applies it to the
+     * files in a file list: empty if unset, otherwise ending in a slash.
+     */
+    private String getNormalizedKeyPrefix()
+    {
+        if (keyPrefix == null || keyPrefix.length() == 0)
+        {
+            return "";
+        }
+        return keyPrefix.endsWith("/") ? keyPrefix : keyPrefix + "/";
+    }
+
+    /**
+     * Lists every object under the key prefix, keyed by object key.
+     */
+    private Map<String, S3ObjectSummary> listRemoteObjects(AmazonS3Client client)
+    {
+        Map<String, S3ObjectSummary> remoteObjects = new HashMap<String, S3ObjectSummary>();
+        ObjectListing objectListing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(bucketName).withPrefix(getNormalizedKeyPrefix()));
+        while (true)
+        {
+            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+            {
+                remoteObjects.put(objectSummary.getKey(), objectSummary);
+            }
+            if (objectListing.isTruncated())
+            {
+                objectListing = client.listNextBatchOfObjects(objectListing);
+            }
+            else
+            {
+                return remoteObjects;
+            }
+        }
+    }
+
+    private static String computeContentMd5(File file) throws IOException
+    {
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(file));
+    }
+
+    /**
+     * Returns whether the local file has the same content as the remote
+     * object. Sizes are compared first. A single-part ETag is the MD5 of the
+     * object, so it is compared directly; a multipart ETag is not, so the MD5
+     * stored in the user metadata at upload time is fetched instead. If the
+     * manifest shows the file unchanged since it was last recorded against
+     * the same ETag, neither the hash nor the metadata is needed.
+     */
+    private boolean isUpToDate(AmazonS3Client client, File file, String key, S3ObjectSummary remote,
+                               Map<File, String> contentMd5s, UploadManifest manifest) throws IOException
+    {
+        if (remote == null || remote.getSize() != file.length())
+        {
+            return false;
+        }
+        String eTag = remote.getETag();
+        if (manifest != null)
+        {
+            UploadManifest.Entry entry = manifest.get(key);
+            if (entry != null && entry.matches(file) && entry.getETag().equals(eTag))
+            {
+                return true;
+            }
+        }
+        String contentMd5 = computeContentMd5(file);
+        contentMd5s.put(file, contentMd5);
+        boolean upToDate;
+        if (eTag != null && !eTag.contains("-"))
+        {
+            upToDate = eTag.equalsIgnoreCase(contentMd5);
+        }
+        else
+        {
+            String storedMd5 = client.getObjectMetadata(bucketName, key)
+                    .getUserMetaDataOf(CONTENT_MD5_METADATA);
+            upToDate = contentMd5.equalsIgnoreCase(storedMd5);
+        }
+        if (upToDate && manifest != null)
+        {
+            manifest.put(key, file, contentMd5, eTag);
+        }
+        return upToDate;
+    }
+
+    /**
+     * Records every one of the uploads that completed in the manifest, along
+     * with the ETag S3 assigned to it.
+     */
+    private void recordCompletedUploads(Collection<? extends Upload> uploads, Map<String, File> filesByKey,
+                                        Map<File, String> contentMd5s, UploadManifest manifest) throws InterruptedException
+    {
+        for (Upload upload : uploads)
+        {
+            if (upload.getState() == TransferState.Completed)
+            {
+                UploadResult result = upload.waitForUploadResult();
+                File file = filesByKey.get(result.getKey());
+                if (file != null)
+                {
+                    manifest.put(result.getKey(), file, contentMd5s.get(file), result.getETag());
+                }
+            }
+        }
+    }
+
+    private UploadManifest loadManifest()
+    {
+        try
+        {
+            return UploadManifest.load(manifestFile, bucketName, this);
+        }
+        catch (IOException e)
+        {
+            throw new BuildException("Could not read upload manifest " + manifestFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void saveManifest(UploadManifest manifest)
+    {
+        try
+        {
+            manifest.save();
+        }
+        catch (IOException e)
+        {
+            throw new BuildException("Could not write upload manifest " + manifestFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the given keys from the bucket, in batches of the most keys a
+     * single request allows.
+     */
+    private void deleteObjects(AmazonS3Client client, List<String> keys)
+    {
+        for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_DELETE)
+        {
+            List<String> batch = keys.subList(i, Math.min(keys.size(), i + MAX_KEYS_PER_DELETE));
+            client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                    .withKeys(batch.toArray(new String[batch.size()])));
+        }
+        log("Deleted " + keys.size() + " orphaned objects");
+    }
+
+    /**
+     * Logs the combined progress of all uploads once per status update period
+     * until they have all finished.
+     */
+    private void reportProgressUntilDone(UploadProgressReporter progressReporter)
+    {
+        while (!progressReporter.isDone())
+        {
+            try
+            {
+                Thread.sleep(statusUpdatePeriodInMs);
+            }
+            catch (InterruptedException e)
+            {
+                throw new BuildException("Interrupted while waiting for uploads to finish", e);
+            }
+            log(progressReporter.getStatus());
+        }
+    }
+
+    /**
+     * Aborts the multipart uploads in the bucket that were started before the
+     * configured age, and deletes checkpoints at least as old.
+     */
+    private void abortOldUploads(TransferManager transferManager, UploadCheckpoints checkpoints)
+    {
+        Date cutoff = new Date(System.currentTimeMillis()
+                - TimeUnit.HOURS.toMillis(abortUploadsOlderThanHours));
+        transferManager.abortMultipartUploads(bucketName, cutoff);
+        log("Aborted incomplete multipart uploads started before " + cutoff, Project.MSG_VERBOSE);
+        if (checkpoints != null)
+        {
+            int deleted = checkpoints.deleteOlderThan(cutoff.getTime());
+            if (deleted > 0)
+            {
+                log("Deleted " + deleted + " expired upload checkpoints", Project.MSG_VERBOSE);
+            }
+        }
+    }
+
+    /**
+     * Starts uploading a file that is large enough to be uploaded in parts.
+     * If a checkpoint was left by an earlier attempt, the upload is resumed
+     * from it on the shared TransferManager; otherwise a new upload is started
+     * that saves a checkpoint once its multipart upload has begun. Resuming
+     * sets the TransferManager's part size and threshold to those of the
+     * checkpoint, so a checkpoint saved with different ones is started over
+     * rather than changing them for every other upload.
+     */
+    private void startResumableUpload(TransferManager transferManager,
+                                      ResumableUpload resumable, UploadCheckpoints checkpoints,
+                                      ObjectMetadataProvider metadataProvider, boolean resume)
+    {
+        if (resume && resumable.checkpoint.exists())
+        {
+            try
+            {
+                PersistableUpload persistableUpload = checkpoints.read(resumable.checkpoint);
+                // The part size and threshold are only visible in the serialized form
+                JsonNode saved = Jackson.jsonNodeOf(persistableUpload.serialize());
+                TransferManagerConfiguration configuration = transferManager.getConfiguration();
+                if (saved.path("partSize").asLong() != configuration.getMinimumUploadPartSize()
+                        || saved.path("mutlipartUploadThreshold").asLong() != configuration.getMultipartUploadThreshold())
+                {
+                    throw new IllegalStateException("it was started with a different part size or threshold");
+                }
+                resumable.upload = transferManager.resumeUpload(persistableUpload);
+                resumable.resumed = true;
+                log("Resuming upload of " + resumable.file);
+                return;
+            }
+            catch (Exception e)
+            {
+                log("Could not resume upload of " + resumable.file + ", starting over: " + e.getMessage(),
+                        Project.MSG_WARN);
+            }
+        }
+        resumable.checkpoint.delete();
+        resumable.resumed = false;
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (metadataProvider != null)
+        {
+            metadataProvider.provideObjectMetadata(resumable.file, metadata);
+        }
+        resumable.upload = transferManager.upload(
+                new PutObjectRequest(bucketName, resumable.key, resumable.file).withMetadata(metadata),
+                checkpoints.newWriter(resumable.checkpoint));
+    }
+
+    /**
+     * Waits for a resumable upload to finish. A resumed upload that fails,
+     * for example because its multipart upload has since been aborted, is
+     * started over once from the beginning. The checkpoint is deleted once
+     * the upload completes, and kept if it fails so a later build can resume.
+     */
+    private void waitForResumableUpload(TransferManager transferManager,
+                                        ResumableUpload resumable, UploadCheckpoints checkpoints,
+                                        ObjectMetadataProvider metadataProvider) throws InterruptedException
+    {
+        try
+        {
+            resumable.upload.waitForCompletion();
+        }
+        catch (AmazonClientException e)
+        {
+            if (!resumable.resumed)
+            {
+                throw e;
+            }
+            log("Resumed upload of " + resumable.file + " failed, starting over: " + e.getMessage(),
+                    Project.MSG_WARN);
+            startResumableUpload(transferManager, resumable, checkpoints, metadataProvider, false);
+            resumable.upload.waitForCompletion();
+        }
+        resumable.checkpoint.delete();
+    }
+
+    /**
+     * Works out which files of a fileset to upload, skipping those that are
+     * already up to date when syncing. When checkpoints are kept, files at or
+     * above the multipart threshold are set aside to be uploaded one by one
+     * so that each can be checkpointed.
+     */
+    private FileSetUpload planFileSetUpload(AmazonS3Client client, FileSet fileSet, Map<String, S3ObjectSummary> remoteObjects,
+                                            Map<File, String> contentMd5s, UploadManifest manifest,
+                                            UploadCheckpoints checkpoints, long multipartUploadThreshold) throws IOException
+    {
+        DirectoryScanner directoryScanner = fileSet.getDirectoryScanner(getProject());
+        String[] includedFiles = directoryScanner.getIncludedFiles();
+        FileSetUpload fileSetUpload = new FileSetUpload(directoryScanner.getBasedir(), includedFiles.length);
+        String normalizedKeyPrefix = getNormalizedKeyPrefix();
+        for (String includedFile : includedFiles)
+        {
+            File file = new File(fileSetUpload.base, includedFile);
+            String key = normalizedKeyPrefix + includedFile.replace(File.separatorChar, '/');
+            if (sync && isUpToDate(client, file, key, remoteObjects.remove(key), contentMd5s, manifest))
+            {
+                fileSetUpload.skipped++;
+                continue;
+            }
+            if (checkpoints != null && file.length() > multipartUploadThreshold)
+            {
+                fileSetUpload.resumables.add(new ResumableUpload(key, file, checkpoints.getCheckpoint(key, file)));
+            }
+            else
+            {
+                fileSetUpload.files.add(file);
+            }
+            fileSetUpload.filesByKey.put(key, file);
+            log("Uploading file: " + includedFile, Project.MSG_VERBOSE);
+        }
+        return fileSetUpload;
+    }
+
+    /**
+     * Uploads files to S3. Each fileset's files are handed to the shared
+     * TransferManager as soon as the fileset has been scanned, so uploads
+     * from one fileset overlap with scanning and uploading the next. The task
+     * then waits once for every upload to finish and reports a summary for
+     * each fileset.
      */
     @Override
     public void execute()
     {
         checkParameters();
-        TransferManager transferManager;
-        if (awsSecretKey != null && awsAccessKeyId != null)
+        AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        TransferManager transferManager = getOrCreateTransferManager(uploadThreads,
+                multipartUploadThreshold, minimumUploadPartSize);
+        final long multipartUploadThreshold = transferManager.getConfiguration()
+                .getMultipartUploadThreshold();
+        final Map<File, String> contentMd5s = new ConcurrentHashMap<File, String>();
+        ObjectMetadataProvider metadataProvider = null;
+        Map<String, S3ObjectSummary> remoteObjects = null;
+        UploadManifest manifest = manifestFile == null ? null : loadManifest();
+        UploadCheckpoints checkpoints = checkpointDir == null ? null : new UploadCheckpoints(checkpointDir, bucketName);
+        if (abortUploadsOlderThanHours != null)
         {
-            transferManager = new TransferManager(getOrCreateClient(AmazonS3Client.class));
+            abortOldUploads(transferManager, checkpoints);
         }
-        else
+        if (sync)
         {
-            transferManager = new TransferManager();
+            remoteObjects = listRemoteObjects(client);
+            metadataProvider = new ObjectMetadataProvider()
+            {
+                public void provideObjectMetadata(File file, ObjectMetadata metadata)
+                {
+                    if (file.length() < multipartUploadThreshold)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        String contentMd5 = contentMd5s.get(file);
+                        if (contentMd5 == null)
+                        {
+                            contentMd5 = computeContentMd5(file);
+                        }
+                        metadata.addUserMetadata(CONTENT_MD5_METADATA, contentMd5);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new BuildException("Could not hash file " + file, e);
+                    }
+                }
+            };
         }
-        for (FileSet fileSet : filesets)
+
+        List<FileSetUpload> fileSetUploads = new ArrayList<FileSetUpload>(filesets.size());
+        UploadProgressReporter progressReporter = new UploadProgressReporter();
+        boolean failed = false;
+        try
         {
-            DirectoryScanner directoryScanner = fileSet.getDirectoryScanner(getProject());
-            String[] includedFiles = directoryScanner.getIncludedFiles();
-            try
+            for (FileSet fileSet : filesets)
+            {
+                FileSetUpload fileSetUpload = null;
+                try
+                {
+                    fileSetUpload = planFileSetUpload(client, fileSet, remoteObjects, contentMd5s, manifest,
+                            checkpoints, multipartUploadThreshold);
+                    if (!fileSetUpload.files.isEmpty())
+                    {
+                        fileSetUpload.upload = transferManager.uploadFileList(bucketName, keyPrefix,
+                                fileSetUpload.base, fileSetUpload.files, metadataProvider);
+                        progressReporter.addUpload(fileSetUpload.upload);
+                    }
+                    for (ResumableUpload resumable : fileSetUpload.resumables)
+                    {
+                        startResumableUpload(transferManager, resumable, checkpoints, metadataProvider, true);
+                        progressReporter.addUpload(resumable.upload);
+                    }
+                }
+                catch (Exception e)
+                {
+                    if (fileSetUpload == null)
+                    {
+                        fileSetUpload = new FileSetUpload(fileSet.getDir(getProject()), 0);
+                    }
+                    fileSetUpload.error = e;
+                }
+                fileSetUploads.add(fileSetUpload);
+            }
+
+            if (printStatusUpdates)
+            {
+                reportProgressUntilDone(progressReporter);
+            }
+
+            for (FileSetUpload fileSetUpload : fileSetUploads)
             {
                 try
                 {
-                    long ts = System.currentTimeMillis();
-                    List<File> files = new ArrayList(includedFiles.length);
-                    File base = directoryScanner.getBasedir();
-                    for (String includedFile : includedFiles)
+                    if (fileSetUpload.upload != null)
                     {
-                        File file = new File(base, includedFile);
-                        files.add(file);
-                        System.out.println("Uploading file: " + includedFile);
+                        fileSetUpload.upload.waitForCompletion();
                     }
-                    MultipleFileUpload multipleFileUpload = transferManager.uploadFileList(bucketName, keyPrefix, base, files);
-                    multipleFileUpload.waitForCompletion();
-                    System.out.println("Upload succesful");
                 }
                 catch (Exception e)
                 {
-                    if (!continueOnFail)
+                    fileSetUpload.error = e;
+                }
+                for (ResumableUpload resumable : fileSetUpload.resumables)
+                {
+                    if (resumable.upload == null)
                     {
-                        throw new BuildException("Error.", e);
+                        continue;
                     }
-                    else
+                    try
                     {
-                        System.err.println("Failed to upload. Continuing...");
+                        waitForResumableUpload(transferManager, resumable, checkpoints, metadataProvider);
                     }
+                    catch (Exception e)
+                    {
+                        if (fileSetUpload.error == null)
+                        {
+                            fileSetUpload.error = e;
+                        }
+                    }
+                }
+                if (manifest != null)
+                {
+                    try
+                    {
+                        recordCompletedUploads(fileSetUpload.getFileUploads(), fileSetUpload.filesByKey,
+                                contentMd5s, manifest);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new BuildException("Interrupted while waiting for uploads to finish", e);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (manifest != null)
+            {
+                saveManifest(manifest);
+            }
+        }
+
+        Exception firstError = null;
+        for (FileSetUpload fileSetUpload : fileSetUploads)
+        {
+            log(fileSetUpload.getSummary(sync));
+            if (fileSetUpload.error != null)
+            {
+                failed = true;
+                if (firstError == null)
+                {
+                    firstError = fileSetUpload.error;
+                }
+            }
+        }
+        if (failed)
+        {
+            if (!continueOnFail)
+            {
+                throw new BuildException("Error.", firstError);
+            }
+            log("Failed to upload. Continuing...", Project.MSG_WARN);
+        }
+        else
+        {
+            log("Upload succesful");
+        }
+
+        if (deleteOrphans && failed)
+        {
+            log("Not deleting orphaned objects because some files failed to upload.", Project.MSG_WARN);
+        }
+        else if (deleteOrphans && !remoteObjects.isEmpty())
+        {
+            deleteObjects(client, new ArrayList<String>(remoteObjects.keySet()));
+        }
+    }
+
+    /**
+     * The files to upload from a single fileset, and how their upload went.
+     */
+    private static class FileSetUpload
+    {
+        private final File base;
+        private final List<File> files;
+        private final List<ResumableUpload> resumables = new ArrayList<ResumableUpload>();
+        private final Map<String, File> filesByKey = new HashMap<String, File>();
+        private int skipped;
+        private MultipleFileUpload upload;
+        private Exception error;
+
+        FileSetUpload(File base, int size)
+        {
+            this.base = base;
+            this.files = new ArrayList<File>(size);
+        }
+
+        /**
+         * Returns the upload of every file of this fileset that was started.
+         */
+        List<Upload> getFileUploads()
+        {
+            List<Upload> fileUploads = new ArrayList<Upload>();
+            if (upload != null)
+            {
+                fileUploads.addAll(upload.getSubTransfers());
+            }
+            for (ResumableUpload resumable : resumables)
+            {
+                if (resumable.upload != null)
+                {
+                    fileUploads.add(resumable.upload);
                 }
             }
-            finally
+            return fileUploads;
+        }
+
+        /**
+         * Returns a one line summary of how many files of this fileset were
+         * uploaded, skipped and failed.
+         */
+        String getSummary(boolean sync)
+        {
+            int totalFiles = files.size() + resumables.size();
+            int uploadedFiles = 0;
+            for (Upload fileUpload : getFileUploads())
+            {
+                if (fileUpload.getState() == TransferState.Completed)
+                {
+                    uploadedFiles++;
+                }
+            }
+            int failedFiles = totalFiles - uploadedFiles;
+            StringBuilder summary = new StringBuilder("Fileset " + base + ": ")
+                    .append(uploadedFiles).append(" uploaded");
+            if (sync)
+            {
+                summary.append(", ").append(skipped).append(" unchanged");
+            }
+            if (failedFiles > 0)
+            {
+                summary.append(", ").append(failedFiles).append(" failed");
+            }
+            if (error != null)
             {
-                transferManager.shutdownNow(false);
+                summary.append(" (").append(error.getMessage()).append(")");
             }
+            return summary.toString();
+        }
+    }
+
+    /**
+     * A file uploaded on its own so that its multipart upload can be
+     * checkpointed and resumed.
+     */
+    private static class ResumableUpload
+    {
+        private final String key;
+        private final File file;
+        private final File checkpoint;
+        private Upload upload;
+        private boolean resumed;
+
+        ResumableUpload(String key, File file, File checkpoint)
+        {
+            this.key = key;
+            this.file = file;
+            this.checkpoint = checkpoint;
         }
     }
 }
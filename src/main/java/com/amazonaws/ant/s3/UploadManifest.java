@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * An on-disk record of the files a sync upload has already sent to S3, or a
+ * download has already fetched from it, keyed by object key. Each entry holds
+ * the file's last modified time and size as they were when it was uploaded,
+ * downloaded or verified, its MD5 if known, and the ETag of the object in S3.
+ * A file whose time and size still match its entry, and whose object still
+ * has the recorded ETag, does not need to be hashed again.
+ *
+ * The file is a header followed by fixed-layout binary records. New and
+ * changed entries are appended, and later records override earlier ones, so
+ * saving only writes what changed. The file is rewritten from scratch once
+ * superseded records make up more than half of it.
+ */
+class UploadManifest {
+
+    private static final int MAGIC = 0x53334d46;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final String bucketName;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private int recordsOnDisk;
+    private boolean rewrite;
+
+    private UploadManifest(File file, String bucketName) {
+        this.file = file;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Loads the manifest for the given bucket. A missing file, a file written
+     * for another bucket, or one written in an unknown format results in an
+     * empty manifest that replaces the file on save. A truncated last record,
+     * such as one left by a killed build, is ignored and dropped from the
+     * file on the next save. A file that cannot be read as a manifest at all
+     * is treated as empty, and replaced on save, and the error is logged as
+     * a warning through the given task.
+     */
+    static UploadManifest load(File file, String bucketName, Task task)
+            throws IOException {
+        UploadManifest manifest = new UploadManifest(file, bucketName);
+        if (!file.exists()) {
+            manifest.rewrite = true;
+            return manifest;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !bucketName.equals(in.readUTF())) {
+                manifest.rewrite = true;
+                return manifest;
+            }
+            while (true) {
+                in.mark(1);
+                if (in.read() < 0) {
+                    break;
+                }
+                in.reset();
+                String key = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(),
+                        in.readUTF(), in.readUTF());
+                manifest.entries.put(key, entry);
+                manifest.recordsOnDisk++;
+            }
+        } catch (EOFException e) {
+            // A partial last record, or a partial header. Appending after it
+            // would corrupt the records that follow, so rewrite the file.
+            manifest.rewrite = true;
+        } catch (IOException e) {
+            task.log("Ignoring unreadable manifest " + file + ": "
+                    + e.getMessage(), e, Project.MSG_WARN);
+            manifest.entries.clear();
+            manifest.recordsOnDisk = 0;
+            manifest.rewrite = true;
+        } finally {
+            in.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the entry for the given key, or null if there is none.
+     */
+    Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records that the given file is stored under the given key. The time and
+     * size are read from the file now, so this should be called right after
+     * the file was uploaded or verified.
+     */
+    void put(String key, File localFile, String contentMd5, String eTag) {
+        Entry entry = new Entry(localFile.lastModified(), localFile.length(),
+                contentMd5 == null ? "" : contentMd5, eTag == null ? "" : eTag);
+        if (!entry.equals(entries.get(key))) {
+            entries.put(key, entry);
+            pending.put(key, entry);
+        }
+    }
+
+    /**
+     * Writes the changes since the manifest was loaded to disk.
+     */
+    void save() throws IOException {
+        if (!rewrite && pending.isEmpty()) {
+            return;
+        }
+        boolean compact = rewrite
+                || recordsOnDisk + pending.size() > 2 * entries.size();
+        File target = compact ? new File(file.getPath() + ".tmp") : file;
+        if (target.getAbsoluteFile().getParentFile() != null) {
+            target.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(target, !compact)));
+        try {
+            if (compact) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(bucketName);
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    write(out, entry.getKey(), entry.getValue());
+                }
+            } else {
+                for (Map.Entry<String, Entry> entry : pending.entrySet()) {
+                    write(out, entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (compact) {
+            file.delete();
+            if (!target.renameTo(file)) {
+                throw new IOException("Could not replace manifest " + file);
+            }
+            recordsOnDisk = entries.size();
+        } else {
+            recordsOnDisk += pending.size();
+        }
+        pending.clear();
+        rewrite = false;
+    }
+
+    private static void write(DataOutputStream out, String key, Entry entry)
+            throws IOException {
+        out.writeUTF(key);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.size);
+        out.writeUTF(entry.contentMd5);
+        out.writeUTF(entry.eTag);
+    }
+
+    /**
+     * The recorded state of a single uploaded file.
+     */
+    static class Entry {
+        private final long lastModified;
+        private final long size;
+        private final String contentMd5;
+        private final String eTag;
+
+        Entry(long lastModified, long size, String contentMd5, String eTag) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.contentMd5 = contentMd5;
+            this.eTag = eTag;
+        }
+
+        /**
+         * Returns whether the file still has the time and size recorded here.
+         */
+        boolean matches(File localFile) {
+            return localFile.lastModified() == lastModified
+                    && localFile.length() == size;
+        }
+
+        String getContentMd5() {
+            return contentMd5.length() == 0 ? null : contentMd5;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return lastModified == other.lastModified && size == other.size
+                    && contentMd5.equals(other.contentMd5)
+                    && eTag.equals(other.eTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastModified ^ size) * 31 + eTag.hashCode();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.s3.transfer.MultipleFileUpload;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.Upload;
+
+/**
+ * Aggregates the progress of any number of uploads into a single
+ * status line. The uploads are already running when they are handed to this
+ * class, so rather than listening for progress events, which could miss the
+ * bytes sent before a listener was attached, it reads the totals each upload
+ * keeps. Intended to be called from the build thread at whatever period the
+ * task reports at.
+ */
+class UploadProgressReporter {
+
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final long startTime = System.currentTimeMillis();
+    private final List<Transfer> uploads = new ArrayList<Transfer>();
+    private final List<Upload> fileUploads = new ArrayList<Upload>();
+
+    /**
+     * Adds a running multiple file upload to the progress being reported.
+     */
+    void addUpload(MultipleFileUpload upload) {
+        uploads.add(upload);
+        fileUploads.addAll(upload.getSubTransfers());
+    }
+
+    /**
+     * Adds a running single file upload to the progress being reported.
+     */
+    void addUpload(Upload upload) {
+        uploads.add(upload);
+        fileUploads.add(upload);
+    }
+
+    /**
+     * Returns whether every upload added so far has finished.
+     */
+    boolean isDone() {
+        for (Transfer upload : uploads) {
+            if (!upload.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a one line status: bytes and files done, throughput since the
+     * start, and the estimated time left at that throughput.
+     */
+    String getStatus() {
+        long bytes = 0;
+        long total = 0;
+        int files = 0;
+        for (Transfer upload : uploads) {
+            bytes += upload.getProgress().getBytesTransferred();
+            total += upload.getProgress().getTotalBytesToTransfer();
+        }
+        for (Upload fileUpload : fileUploads) {
+            if (fileUpload.isDone()) {
+                files++;
+            }
+        }
+        double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+        double bytesPerSecond = bytes / seconds;
+
+        StringBuilder status = new StringBuilder("Uploaded ")
+                .append(String.format("%.1f", bytes / BYTES_PER_MB))
+                .append(" MB of ")
+                .append(String.format("%.1f", total / BYTES_PER_MB))
+                .append(" MB, ").append(files).append(" of ")
+                .append(fileUploads.size()).append(" files, ")
+                .append(String.format("%.1f", bytesPerSecond / BYTES_PER_MB))
+                .append(" MB/s");
+        if (bytesPerSecond > 0 && total > bytes) {
+            status.append(", ETA ")
+                    .append(formatDuration((long) ((total - bytes) / bytesPerSecond)));
+        }
+        return status.toString();
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        if (seconds < 3600) {
+            return (seconds / 60) + "m " + (seconds % 60) + "s";
+        }
+        return (seconds / 3600) + "h " + (seconds % 3600 / 60) + "m";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+public class BackoffPollerTests {
+
+    private static final long HOUR_IN_MS = 60 * 60 * 1000;
+
+    @Test
+    public void testDelaysGrowUpToMaximum() {
+        BackoffPoller poller = new BackoffPoller(2000, 1.5, 5000, 0, HOUR_IN_MS);
+        assertEquals(2000, poller.nextDelayInMs());
+        assertEquals(3000, poller.nextDelayInMs());
+        assertEquals(4500, poller.nextDelayInMs());
+        assertEquals(5000, poller.nextDelayInMs());
+        assertEquals(5000, poller.nextDelayInMs());
+    }
+
+    @Test
+    public void testShortInitialDelayStillGrows() {
+        BackoffPoller poller = new BackoffPoller(0, 1.5, 30000, 0, HOUR_IN_MS);
+        assertEquals(0, poller.nextDelayInMs());
+        assertEquals(BackoffPoller.MIN_DELAY_IN_MS, poller.nextDelayInMs());
+        assertEquals(1500, poller.nextDelayInMs());
+        assertEquals(2250, poller.nextDelayInMs());
+    }
+
+    @Test
+    public void testDelayGrowthRoundsUp() {
+        BackoffPoller poller = new BackoffPoller(1001, 1.001, 30000, 0, HOUR_IN_MS);
+        poller.nextDelayInMs();
+        assertEquals(1003, poller.nextDelayInMs());
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        BackoffPoller poller = new BackoffPoller(10000, 1, 10000, 0.2, HOUR_IN_MS);
+        for (int i = 0; i < 1000; i++) {
+            long delay = poller.nextDelayInMs();
+            assertTrue(delay >= 8000 && delay <= 12000);
+        }
+    }
+
+    @Test
+    public void testThrottlingBacksOffToMaximum() {
+        BackoffPoller poller = new BackoffPoller(2000, 1.5, 30000, 0, HOUR_IN_MS);
+        AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+        throttled.setErrorCode("Throttling");
+        assertTrue(poller.backOffIfThrottled(throttled));
+        assertEquals(30000, poller.nextDelayInMs());
+        poller.reset();
+        assertEquals(2000, poller.nextDelayInMs());
+
+        AmazonServiceException other = new AmazonServiceException("Not found");
+        other.setErrorCode("ValidationError");
+        assertFalse(poller.backOffIfThrottled(other));
+    }
+
+    @Test
+    public void testStopsAtDeadline() throws InterruptedException {
+        assertFalse(new BackoffPoller(0, 1.5, 30000, 0, 0).awaitNextPoll());
+
+        BackoffPoller poller = new BackoffPoller(0, 1.5, 30000, 0, 300);
+        long start = System.currentTimeMillis();
+        int polls = 0;
+        while (poller.awaitNextPoll()) {
+            polls++;
+        }
+        assertEquals(2, polls);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testCheckSettings() {
+        StringBuilder errors = new StringBuilder();
+        assertTrue(BackoffPoller.checkSettings(0, 1, 1000, 0, errors));
+        assertFalse(BackoffPoller.checkSettings(-1, 0.5, 999, 1, errors));
+        assertEquals(4, errors.toString().split("\n").length);
+    }
+}
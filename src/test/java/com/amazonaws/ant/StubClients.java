@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.AmazonWebServiceClient;
+
+/**
+ * Helps unit tests run tasks against stub clients, which extend the real
+ * clients and override the calls a test needs.
+ */
+public class StubClients {
+
+    /**
+     * Returns a project in which every task gets the given clients from
+     * getOrCreateClient, as long as it sets no credentials or region. Each
+     * client is returned for its own class and each of the client classes it
+     * extends.
+     */
+    public static Project newProject(AmazonWebServiceClient... clients) {
+        Project project = new Project();
+        Map<List<String>, Object> cache = new HashMap<List<String>, Object>();
+        for (AmazonWebServiceClient client : clients) {
+            for (Class<?> clientClass = client.getClass(); clientClass != AmazonWebServiceClient.class; clientClass = clientClass
+                    .getSuperclass()) {
+                cache.put(Arrays.asList(clientClass.getName(), null, null, null), client);
+            }
+        }
+        project.addReference(AWSAntTask.CLIENT_CACHE_REFERENCE, cache);
+        return project;
+    }
+
+    /**
+     * Sets the task up in a new project with the given clients and, for a
+     * polling task, makes its first poll immediate.
+     */
+    public static <T extends AWSAntTask> T setUp(T task,
+            AmazonWebServiceClient... clients) {
+        task.setProject(newProject(clients));
+        if (task instanceof AWSPollingAntTask) {
+            ((AWSPollingAntTask) task).setInitialPollDelayInMs(0);
+        }
+        return task;
+    }
+
+    /**
+     * The responses a stub client gives to successive calls, in order.
+     */
+    public static class Responses<T> {
+        private final LinkedList<T> responses = new LinkedList<T>();
+        private int calls;
+
+        public synchronized void add(T response) {
+            responses.add(response);
+        }
+
+        /**
+         * Returns the next response, failing the test if there is none left.
+         */
+        public synchronized T next() {
+            calls++;
+            if (responses.isEmpty()) {
+                throw new AssertionError("Unexpected call " + calls
+                        + ", no responses left");
+            }
+            return responses.removeFirst();
+        }
+
+        /**
+         * Returns how many responses have been asked for.
+         */
+        public synchronized int getCalls() {
+            return calls;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+public class DescribeStackTaskTests {
+
+    private File propertiesFile;
+
+    @Before
+    public void setUp() throws IOException {
+        propertiesFile = File.createTempFile("stack", ".properties");
+    }
+
+    @Test
+    public void testExportedPropertiesMatchTheProject() throws IOException {
+        DescribeStackTask task = StubClients.setUp(new DescribeStackTask(),
+                new StubCloudFormationClient());
+        task.getProject().setProperty("stack.Url", "http://example.com/old");
+        task.setStackName("stack");
+        task.setPrefix("stack.");
+        task.setPropertiesFile(propertiesFile);
+        task.execute();
+
+        Properties exported = new Properties();
+        InputStream in = new FileInputStream(propertiesFile);
+        try {
+            exported.load(in);
+        } finally {
+            in.close();
+        }
+        assertEquals("http://example.com/old", exported.getProperty("stack.Url"));
+        assertEquals("http://example.com/old", task.getProject().getProperty("stack.Url"));
+        assertEquals("vpc-1", exported.getProperty("stack.VpcId"));
+    }
+
+    @After
+    public void tearDown() {
+        propertiesFile.delete();
+    }
+
+    private static class StubCloudFormationClient extends AmazonCloudFormationClient {
+        @Override
+        public DescribeStacksResult describeStacks(DescribeStacksRequest request) {
+            return new DescribeStacksResult().withStacks(new Stack()
+                    .withStackName("stack").withStackId("id-stack")
+                    .withOutputs(new Output().withOutputKey("Url").withOutputValue("http://example.com/new"),
+                            new Output().withOutputKey("VpcId").withOutputValue("vpc-1")));
+        }
+    }
+}
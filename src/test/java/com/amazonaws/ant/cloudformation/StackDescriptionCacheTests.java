@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+public class StackDescriptionCacheTests {
+
+    private static final long TTL_IN_MS = 60000;
+    private static final Stack STACK = new Stack().withStackName("stack")
+            .withStackId("arn:aws:cloudformation:us-east-1:123456789012:stack/stack/1");
+
+    private final AmazonCloudFormationClient client = new AmazonCloudFormationClient();
+
+    @Test
+    public void testStackIsFoundByNameAndId() {
+        StackDescriptionCache cache = new StackDescriptionCache();
+        assertNull(cache.get(client, "stack", TTL_IN_MS));
+        cache.put(client, STACK);
+        assertSame(STACK, cache.get(client, "stack", TTL_IN_MS));
+        assertSame(STACK, cache.get(client, STACK.getStackId(), TTL_IN_MS));
+    }
+
+    @Test
+    public void testExpiredStackIsNotReturned() throws InterruptedException {
+        StackDescriptionCache cache = new StackDescriptionCache();
+        cache.put(client, STACK);
+        assertNull(cache.get(client, "stack", 0));
+        Thread.sleep(20);
+        assertNull(cache.get(client, "stack", 10));
+        assertSame(STACK, cache.get(client, "stack", TTL_IN_MS));
+    }
+
+    @Test
+    public void testStacksAreKeptPerClient() {
+        StackDescriptionCache cache = new StackDescriptionCache();
+        cache.put(client, STACK);
+        assertNull(cache.get(new AmazonCloudFormationClient(), "stack", TTL_IN_MS));
+    }
+
+    @Test
+    public void testInvalidateDropsNameAndId() {
+        StackDescriptionCache cache = new StackDescriptionCache();
+        AmazonCloudFormationClient otherClient = new AmazonCloudFormationClient();
+        cache.put(client, STACK);
+        cache.put(otherClient, STACK);
+        cache.invalidate(STACK.getStackId());
+        assertNull(cache.get(client, "stack", TTL_IN_MS));
+        assertNull(cache.get(otherClient, "stack", TTL_IN_MS));
+        assertNull(cache.get(client, STACK.getStackId(), TTL_IN_MS));
+    }
+
+    @Test
+    public void testProjectCache() {
+        Project project = new Project();
+        StackDescriptionCache.invalidate(project, "stack");
+        StackDescriptionCache cache = StackDescriptionCache.forProject(project);
+        assertSame(cache, StackDescriptionCache.forProject(project));
+        assertNotSame(cache, StackDescriptionCache.forProject(new Project()));
+        cache.put(client, STACK);
+        StackDescriptionCache.invalidate(project, "stack");
+        assertNull(cache.get(client, STACK.getStackId(), TTL_IN_MS));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.UnknownElement;
+import org.junit.Test;
+
+import com.amazonaws.ant.cloudformation.StackOrchestrationTask.OrchestratedStack;
+
+public class StackOrchestrationTaskTests {
+
+    @Test
+    public void testDeclaredDependencies() {
+        StackOrchestrationTask task = newTask();
+        task.addConfiguredStack(newStack("network", null));
+        task.addConfiguredStack(newStack("database", "network"));
+        task.addConfiguredStack(newStack("app", "network; database"));
+        Map<String, Set<String>> dependencies = task.resolveDependencies();
+        assertEquals(Collections.emptySet(), dependencies.get("network"));
+        assertEquals(names("network"), dependencies.get("database"));
+        assertEquals(names("network", "database"), dependencies.get("app"));
+    }
+
+    @Test
+    public void testDependenciesAreInferredFromOutputReferences() {
+        StackOrchestrationTask task = newTask();
+        task.addConfiguredStack(newStack("network", null));
+        OrchestratedStack database = newStack("database", null);
+        database.setOutputPropertyPrefix("db-");
+        task.addConfiguredStack(database);
+
+        OrchestratedStack app = newStack("app", null);
+        UnknownElement createStack = newElement("create-cloudformation-stack");
+        createStack.getWrapper().setAttribute("stackName", "app");
+        UnknownElement parameter = newElement("StackParameter");
+        parameter.getWrapper().setAttribute("value", "${network.VpcId}");
+        parameter.getWrapper().addText("${db-Endpoint} ${app.Url} ${other}");
+        createStack.getWrapper().addChild(parameter.getWrapper());
+        app.addTask(createStack);
+        task.addConfiguredStack(app);
+
+        assertEquals(names("network", "database"), task.resolveDependencies()
+                .get("app"));
+    }
+
+    @Test
+    public void testUnknownDependencyFails() {
+        StackOrchestrationTask task = newTask();
+        task.addConfiguredStack(newStack("app", "network"));
+        try {
+            task.resolveDependencies();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("unknown stack network"));
+        }
+    }
+
+    @Test
+    public void testCycleIsDetected() {
+        StackOrchestrationTask task = newTask();
+        task.addConfiguredStack(newStack("base", null));
+        task.addConfiguredStack(newStack("a", "base;c"));
+        task.addConfiguredStack(newStack("b", "a"));
+        task.addConfiguredStack(newStack("c", "b"));
+        task.addConfiguredStack(newStack("top", "c"));
+        try {
+            task.resolveDependencies();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("cyclic"));
+            assertTrue(e.getMessage().contains("b"));
+            assertFalse(e.getMessage().contains("base"));
+        }
+    }
+
+    @Test
+    public void testDuplicateStackFails() {
+        StackOrchestrationTask task = newTask();
+        task.addConfiguredStack(newStack("app", null));
+        try {
+            task.addConfiguredStack(newStack("app", null));
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("more than once"));
+        }
+    }
+
+    @Test
+    public void testOnlyOutputReferencesAreDependencies() {
+        StackOrchestrationTask task = newTask();
+        task.getProject().setProperty("env.HOME", "/home/build");
+        task.addConfiguredStack(newStack("env", null));
+        task.addConfiguredStack(newStack("network", null));
+
+        OrchestratedStack app = newStack("app", null);
+        UnknownElement createStack = newElement("create-cloudformation-stack");
+        createStack.getWrapper().setAttribute("templateFile",
+                "${env.HOME}/app.template");
+        createStack.getWrapper().addText("${network.subnet.id} ${network.}");
+        app.addTask(createStack);
+        task.addConfiguredStack(app);
+
+        assertEquals(Collections.emptySet(), task.resolveDependencies().get("app"));
+    }
+
+    private static StackOrchestrationTask newTask() {
+        StackOrchestrationTask task = new StackOrchestrationTask();
+        task.setProject(new Project());
+        return task;
+    }
+
+    private static OrchestratedStack newStack(String name, String dependsOn) {
+        OrchestratedStack stack = new OrchestratedStack();
+        stack.setName(name);
+        stack.setDependsOn(dependsOn);
+        return stack;
+    }
+
+    private static UnknownElement newElement(String name) {
+        UnknownElement element = new UnknownElement(name);
+        new RuntimeConfigurable(element, name);
+        return element;
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
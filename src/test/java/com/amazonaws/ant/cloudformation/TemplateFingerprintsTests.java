@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class TemplateFingerprintsTests {
+
+    private static final String TEMPLATE = "{\"Resources\":{}}";
+    private File fingerprintFile;
+    private File templateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fingerprintFile = File.createTempFile("fingerprints", ".properties");
+        fingerprintFile.delete();
+        templateFile = File.createTempFile("template", ".json");
+        FileUtils.writeStringToFile(templateFile, TEMPLATE);
+    }
+
+    @Test
+    public void testCollectionOrderDoesNotMatter() {
+        String first = new TemplateFingerprints.Builder()
+                .addAll("capabilities", Arrays.asList("a", "b"))
+                .addParameters(Arrays.asList(
+                        new Parameter().withParameterKey("x").withParameterValue("1"),
+                        new Parameter().withParameterKey("y").withParameterValue("2")))
+                .build();
+        String second = new TemplateFingerprints.Builder()
+                .addAll("capabilities", Arrays.asList("b", "a"))
+                .addParameters(Arrays.asList(
+                        new Parameter().withParameterKey("y").withParameterValue("2"),
+                        new Parameter().withParameterKey("x").withParameterValue("1")))
+                .build();
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testValuesAreNotConfusedAcrossNames() {
+        String first = new TemplateFingerprints.Builder().add("a", "bc")
+                .add("d", "").build();
+        String second = new TemplateFingerprints.Builder().add("a", "b")
+                .add("cd", "").build();
+        assertFalse(first.equals(second));
+    }
+
+    @Test
+    public void testEmptyTagsAreLeftOut() {
+        String withoutTags = new TemplateFingerprints.Builder().add("a", "b")
+                .build();
+        String withEmptyTags = new TemplateFingerprints.Builder().add("a", "b")
+                .addTags(Collections.<Tag> emptyList())
+                .build();
+        assertEquals(withoutTags, withEmptyTags);
+    }
+
+    @Test
+    public void testS3UrlIsReadThroughClient() throws IOException {
+        StubS3Client s3Client = new StubS3Client();
+        String fromS3 = new TemplateFingerprints.Builder().addContentOf(
+                "templateURL",
+                "https://s3.amazonaws.com/templatebucket/stack.template",
+                s3Client).build();
+        String fromFile = new TemplateFingerprints.Builder().addContentOf(
+                "templateURL", templateFile.toURI().toString(), s3Client)
+                .build();
+        assertEquals("templatebucket/stack.template", s3Client.requested);
+        assertEquals(fromFile, fromS3);
+    }
+
+    @Test
+    public void testRecordAndLookup() throws IOException {
+        assertNull(TemplateFingerprints.lookup(fingerprintFile, "stack1"));
+        TemplateFingerprints.record(fingerprintFile, "stack1", "abc");
+        TemplateFingerprints.record(fingerprintFile, "stack2", "def");
+        TemplateFingerprints.record(fingerprintFile, "stack1", "ghi");
+        assertEquals("ghi", TemplateFingerprints.lookup(fingerprintFile, "stack1"));
+        assertEquals("def", TemplateFingerprints.lookup(fingerprintFile, "stack2"));
+    }
+
+    @After
+    public void tearDown() {
+        fingerprintFile.delete();
+        templateFile.delete();
+    }
+
+    private static class StubS3Client extends AmazonS3Client {
+        private String requested;
+
+        @Override
+        public S3Object getObject(String bucketName, String key) {
+            requested = bucketName + "/" + key;
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(TEMPLATE
+                    .getBytes()));
+            return object;
+        }
+    }
+}
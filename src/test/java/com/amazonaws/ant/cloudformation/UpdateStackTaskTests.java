@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetResult;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.cloudformation.model.UpdateStackResult;
+
+public class UpdateStackTaskTests {
+
+    private static final String STACK_NAME = "stack";
+    private static final String STACK_ID = "arn:aws:cloudformation:us-east-1:123456789012:stack/stack/1";
+    private File fingerprintFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fingerprintFile = File.createTempFile("fingerprints", ".properties");
+        fingerprintFile.delete();
+    }
+
+    @Test
+    public void testChangeSetWithoutChangesIsDeleted() throws IOException {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.CREATE_IN_PROGRESS));
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.CREATE_COMPLETE));
+        newTask(client).execute();
+        assertTrue(client.deleted);
+        assertFalse(client.executed);
+        assertNotNull(TemplateFingerprints.lookup(fingerprintFile, STACK_NAME));
+    }
+
+    @Test
+    public void testFailedChangeSetWithoutChangesIsDeleted() throws IOException {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.FAILED)
+                .withStatusReason("The submitted information didn't contain changes. "
+                        + "Submit different information to create a change set."));
+        newTask(client).execute();
+        assertTrue(client.deleted);
+        assertFalse(client.executed);
+        assertNotNull(TemplateFingerprints.lookup(fingerprintFile, STACK_NAME));
+    }
+
+    @Test
+    public void testChangeSetWithChangesIsExecuted() throws IOException {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.CREATE_COMPLETE)
+                .withNextToken("page2"));
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.CREATE_COMPLETE)
+                .withChanges(new Change().withResourceChange(new ResourceChange()
+                        .withAction("Modify").withLogicalResourceId("Bucket")
+                        .withResourceType("AWS::S3::Bucket"))));
+        newTask(client).execute();
+        assertFalse(client.deleted);
+        assertTrue(client.executed);
+        assertNull(TemplateFingerprints.lookup(fingerprintFile, STACK_NAME));
+    }
+
+    @Test
+    public void testFailedChangeSetFails() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addDescription(new DescribeChangeSetResult()
+                .withStatus(ChangeSetStatus.FAILED)
+                .withStatusReason("Template format error"));
+        try {
+            newTask(client).execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("Template format error"));
+        }
+        assertFalse(client.deleted);
+        assertFalse(client.executed);
+    }
+
+    @Test
+    public void testPreviousOperationIsNotTakenForTheUpdate() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        List<StackEvent> previous = Arrays.asList(
+                stackEvent("previous-2", "UPDATE_COMPLETE"),
+                stackEvent("previous-1", "UPDATE_IN_PROGRESS"));
+        client.events.add(previous);
+        client.events.add(previous);
+        List<StackEvent> failed = new ArrayList<StackEvent>();
+        failed.add(new StackEvent().withEventId("new-2").withStackId(STACK_ID)
+                .withLogicalResourceId("Bucket").withPhysicalResourceId("bucket")
+                .withResourceStatus("UPDATE_FAILED"));
+        failed.add(stackEvent("new-1", "UPDATE_IN_PROGRESS"));
+        failed.addAll(previous);
+        client.events.add(failed);
+
+        UpdateStackTask task = newTask(client);
+        task.setUseChangeSet(false);
+        task.setWaitForUpdate(true);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("did not reach status UPDATE_COMPLETE"));
+        }
+        assertEquals(3, client.events.getCalls());
+    }
+
+    @After
+    public void tearDown() {
+        fingerprintFile.delete();
+    }
+
+    private UpdateStackTask newTask(AmazonCloudFormationClient client) {
+        UpdateStackTask task = StubClients.setUp(new UpdateStackTask(), client);
+        task.setStackName(STACK_NAME);
+        task.setTemplateBody("{\"Resources\":{}}");
+        task.setUseChangeSet(true);
+        task.setFingerprintFile(fingerprintFile);
+        return task;
+    }
+
+    private static StackEvent stackEvent(String eventId, String status) {
+        return new StackEvent().withEventId(eventId).withStackId(STACK_ID)
+                .withLogicalResourceId(STACK_NAME).withPhysicalResourceId(STACK_ID)
+                .withResourceStatus(status);
+    }
+
+    /**
+     * Answers each describeChangeSet and describeStackEvents call with the
+     * next scripted result.
+     */
+    private static class StubCloudFormationClient extends AmazonCloudFormationClient {
+        private final StubClients.Responses<DescribeChangeSetResult> descriptions = new StubClients.Responses<DescribeChangeSetResult>();
+        private final StubClients.Responses<List<StackEvent>> events = new StubClients.Responses<List<StackEvent>>();
+        private boolean deleted;
+        private boolean executed;
+
+        void addDescription(DescribeChangeSetResult description) {
+            descriptions.add(description);
+        }
+
+        @Override
+        public CreateChangeSetResult createChangeSet(CreateChangeSetRequest request) {
+            return new CreateChangeSetResult().withId("changeSetId");
+        }
+
+        @Override
+        public DescribeChangeSetResult describeChangeSet(DescribeChangeSetRequest request) {
+            return descriptions.next();
+        }
+
+        @Override
+        public UpdateStackResult updateStack(UpdateStackRequest request) {
+            return new UpdateStackResult().withStackId(STACK_ID);
+        }
+
+        @Override
+        public DescribeStackEventsResult describeStackEvents(
+                DescribeStackEventsRequest request) {
+            return new DescribeStackEventsResult().withStackEvents(events.next());
+        }
+
+        @Override
+        public DeleteChangeSetResult deleteChangeSet(DeleteChangeSetRequest request) {
+            deleted = true;
+            return new DeleteChangeSetResult();
+        }
+
+        @Override
+        public ExecuteChangeSetResult executeChangeSet(ExecuteChangeSetRequest request) {
+            executed = true;
+            return new ExecuteChangeSetResult();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.ant.BackoffPoller;
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+
+public class WaitForStackToReachStateTaskTests {
+
+    private static final String STACK_ID = "arn:aws:cloudformation:us-east-1:123456789012:stack/stack/1";
+    private static final long TIMEOUT_IN_MS = 10000;
+
+    @Test
+    public void testTailerStartsAtCurrentOperationAndReturnsOnlyNewEvents() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll(stackEvent("CREATE_IN_PROGRESS"), resourceEvent("Bucket", "CREATE_IN_PROGRESS"),
+                resourceEvent("Bucket", "CREATE_COMPLETE"), stackEvent("CREATE_COMPLETE"),
+                stackEvent("UPDATE_IN_PROGRESS"));
+        client.addPoll(resourceEvent("Queue", "CREATE_IN_PROGRESS"), resourceEvent("Queue", "CREATE_COMPLETE"));
+        client.addPoll();
+
+        StackEventTailer tailer = new StackEventTailer(client, "stack");
+        assertEquals(Arrays.asList("stack UPDATE_IN_PROGRESS"), describe(tailer.poll()));
+        assertEquals(Arrays.asList("Queue CREATE_IN_PROGRESS", "Queue CREATE_COMPLETE"),
+                describe(tailer.poll()));
+        assertTrue(tailer.poll().isEmpty());
+    }
+
+    @Test
+    public void testReachesStatus() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll(stackEvent("CREATE_IN_PROGRESS"), resourceEvent("Bucket", "CREATE_IN_PROGRESS"));
+        client.addPoll(resourceEvent("Bucket", "CREATE_COMPLETE"), stackEvent("CREATE_COMPLETE"));
+        assertTrue(WaitForStackToReachStateTask.waitForCloudFormationStackEventsToReachStatus(client,
+                "stack", "CREATE_COMPLETE", null, newPoller(), true));
+    }
+
+    @Test
+    public void testFailsOnFirstFailedResource() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll(stackEvent("CREATE_IN_PROGRESS"), resourceEvent("Bucket", "CREATE_FAILED"));
+        assertFalse(WaitForStackToReachStateTask.waitForCloudFormationStackEventsToReachStatus(client,
+                "stack", "CREATE_COMPLETE", null, newPoller(), true));
+        assertEquals(1, client.polls.getCalls());
+    }
+
+    @Test
+    public void testResourceFailuresAreIgnoredWhenAwaitingRollback() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll(stackEvent("CREATE_IN_PROGRESS"), resourceEvent("Bucket", "CREATE_FAILED"),
+                stackEvent("ROLLBACK_IN_PROGRESS"), resourceEvent("Queue", "DELETE_FAILED"),
+                stackEvent("ROLLBACK_COMPLETE"));
+        assertTrue(WaitForStackToReachStateTask.waitForCloudFormationStackEventsToReachStatus(client,
+                "stack", "ROLLBACK_COMPLETE;CREATE_COMPLETE", ";", newPoller(), true));
+    }
+
+    @Test
+    public void testFailedStackStatusFails() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll(stackEvent("CREATE_IN_PROGRESS"), resourceEvent("Bucket", "CREATE_FAILED"),
+                stackEvent("CREATE_FAILED"));
+        assertFalse(WaitForStackToReachStateTask.waitForCloudFormationStackEventsToReachStatus(client,
+                "stack", "CREATE_COMPLETE", null, newPoller(), false));
+    }
+
+    private static BackoffPoller newPoller() {
+        return new BackoffPoller(0, 1, BackoffPoller.MIN_DELAY_IN_MS, 0, TIMEOUT_IN_MS);
+    }
+
+    private static StackEvent stackEvent(String status) {
+        return resourceEvent("stack", status).withResourceType("AWS::CloudFormation::Stack")
+                .withPhysicalResourceId(STACK_ID);
+    }
+
+    private static StackEvent resourceEvent(String logicalResourceId, String status) {
+        return new StackEvent().withStackId(STACK_ID).withLogicalResourceId(logicalResourceId)
+                .withPhysicalResourceId(logicalResourceId + "-1").withResourceStatus(status);
+    }
+
+    private static List<String> describe(List<StackEvent> events) {
+        List<String> descriptions = new ArrayList<String>();
+        for (StackEvent event : events) {
+            descriptions.add(event.getLogicalResourceId() + " " + event.getResourceStatus());
+        }
+        return descriptions;
+    }
+
+    /**
+     * Keeps the history of the stack's events, adding the next scripted
+     * events, oldest first, on each poll, and lists them newest first two
+     * at a time.
+     */
+    private static class StubCloudFormationClient extends AmazonCloudFormationClient {
+        private final StubClients.Responses<List<StackEvent>> polls = new StubClients.Responses<List<StackEvent>>();
+        private final LinkedList<StackEvent> history = new LinkedList<StackEvent>();
+
+        void addPoll(StackEvent... events) {
+            polls.add(Arrays.asList(events));
+        }
+
+        @Override
+        public DescribeStackEventsResult describeStackEvents(DescribeStackEventsRequest request) {
+            int from = 0;
+            if (request.getNextToken() == null) {
+                for (StackEvent event : polls.next()) {
+                    history.addFirst(event.withEventId("event-" + history.size()));
+                }
+            } else {
+                from = Integer.parseInt(request.getNextToken());
+            }
+            int to = Math.min(from + 2, history.size());
+            return new DescribeStackEventsResult().withStackEvents(history.subList(from, to))
+                    .withNextToken(to < history.size() ? String.valueOf(to) : null);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.Test;
+
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+public class WaitForStacksToReachStateTaskTests {
+
+    @Test
+    public void testWaitsForEveryStack() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll("a", "CREATE_COMPLETE", "b", "CREATE_IN_PROGRESS", "c", "CREATE_IN_PROGRESS");
+        client.addPoll("a", "CREATE_COMPLETE", "b", "CREATE_COMPLETE", "c", "UPDATE_COMPLETE");
+        newTask(client, "a;b;c").execute();
+        assertEquals(2, client.polls.getCalls());
+        assertEquals(4, client.requests);
+    }
+
+    @Test
+    public void testStopsPagingOnceEveryStackIsFound() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll("a", "CREATE_COMPLETE", "b", "CREATE_COMPLETE", "c", "CREATE_IN_PROGRESS",
+                "d", "CREATE_IN_PROGRESS", "e", "CREATE_IN_PROGRESS");
+        newTask(client, "a;b").execute();
+        assertEquals(1, client.requests);
+    }
+
+    @Test
+    public void testFailsOnFirstFailedStack() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll("a", "ROLLBACK_COMPLETE", "b", "CREATE_IN_PROGRESS");
+        try {
+            newTask(client, "a;b").execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("Stack a failed with status ROLLBACK_COMPLETE"));
+        }
+        assertEquals(1, client.polls.getCalls());
+    }
+
+    @Test
+    public void testReportsAllFailuresWithPolicyAll() {
+        StubCloudFormationClient client = new StubCloudFormationClient();
+        client.addPoll("a", "CREATE_FAILED", "b", "CREATE_IN_PROGRESS", "c", "CREATE_IN_PROGRESS");
+        client.addPoll("b", "CREATE_COMPLETE");
+        WaitForStacksToReachStateTask task = newTask(client, "a;b;c");
+        task.setFailurePolicy("all");
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("2 of 3 stacks failed"));
+            assertTrue(e.getMessage().contains("c=DELETE_COMPLETE"));
+        }
+        assertEquals(2, client.polls.getCalls());
+    }
+
+    private static WaitForStacksToReachStateTask newTask(
+            AmazonCloudFormationClient client, String stackNames) {
+        WaitForStacksToReachStateTask task = StubClients.setUp(
+                new WaitForStacksToReachStateTask(), client);
+        task.setStackNames(stackNames);
+        task.setStatus("CREATE_COMPLETE;UPDATE_COMPLETE");
+        return task;
+    }
+
+    /**
+     * Answers each poll with the next scripted set of stacks and statuses,
+     * listed two stacks per page.
+     */
+    private static class StubCloudFormationClient extends AmazonCloudFormationClient {
+        private final StubClients.Responses<List<Stack>> polls = new StubClients.Responses<List<Stack>>();
+        private List<Stack> stacks;
+        private int requests;
+
+        void addPoll(String... namesAndStatuses) {
+            List<Stack> poll = new ArrayList<Stack>();
+            for (int i = 0; i < namesAndStatuses.length; i += 2) {
+                poll.add(new Stack().withStackName(namesAndStatuses[i])
+                        .withStackId("id-" + namesAndStatuses[i])
+                        .withStackStatus(namesAndStatuses[i + 1]));
+            }
+            polls.add(poll);
+        }
+
+        @Override
+        public DescribeStacksResult describeStacks(DescribeStacksRequest request) {
+            requests++;
+            int from = 0;
+            if (request.getNextToken() == null) {
+                stacks = polls.next();
+            } else {
+                from = Integer.parseInt(request.getNextToken());
+            }
+            int to = Math.min(from + 2, stacks.size());
+            return new DescribeStacksResult().withStacks(stacks.subList(from, to))
+                    .withNextToken(to < stacks.size() ? String.valueOf(to) : null);
+        }
+    }
+}
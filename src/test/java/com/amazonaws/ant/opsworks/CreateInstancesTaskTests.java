@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateInstanceRequest;
+import com.amazonaws.services.opsworks.model.CreateInstanceResult;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.DescribeInstancesResult;
+import com.amazonaws.services.opsworks.model.Instance;
+import com.amazonaws.services.opsworks.model.StartInstanceRequest;
+
+public class CreateInstancesTaskTests {
+
+    @Test
+    public void testRateLimiterSpacesOutCalls() throws InterruptedException {
+        CreateInstancesTask.RateLimiter rateLimiter = new CreateInstancesTask.RateLimiter(20);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            rateLimiter.acquire();
+        }
+        long elapsedInMs = (System.nanoTime() - start) / 1000000L;
+        assertTrue(elapsedInMs >= 190);
+        assertTrue(elapsedInMs < 1000);
+    }
+
+    @Test
+    public void testMinInstancesReadyCannotExceedCount() {
+        CreateInstancesTask task = newTask(new StubOpsWorksClient(0));
+        task.setCount(3);
+        task.setMinInstancesReady(4);
+        try {
+            task.checkParams();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("minInstancesReady"));
+        }
+    }
+
+    @Test
+    public void testContinuesWithEnoughInstances() {
+        StubOpsWorksClient client = new StubOpsWorksClient(1);
+        CreateInstancesTask task = newTask(client);
+        task.setCount(3);
+        task.setMinInstancesReady(2);
+        task.setPropertyNameForInstanceId("ids");
+        task.execute();
+        assertEquals(2, task.getProject().getProperty("ids").split(",").length);
+        assertEquals(task.getProject().getProperty("ids"), task.getProject()
+                .getProperties().get(Constants.INSTANCE_IDS_PROPERTY));
+        assertEquals(3, client.creates.get());
+    }
+
+    @Test
+    public void testReportsEveryFailedCreation() {
+        StubOpsWorksClient client = new StubOpsWorksClient(2);
+        CreateInstancesTask task = newTask(client);
+        task.setCount(3);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("2 of 3 failed"));
+            assertNotNull(e.getCause());
+            assertEquals(1, e.getSuppressed().length);
+        }
+    }
+
+    @Test
+    public void testReportsInstancesThatCouldNotBeStarted() {
+        StubOpsWorksClient client = new StubOpsWorksClient(0);
+        client.startFailures = 1;
+        CreateInstancesTask task = newTask(client);
+        task.setCount(3);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("1 of 3 failed"));
+            assertTrue(e.getMessage().contains("could not be started"));
+            assertEquals(1, client.unstarted.size());
+            assertTrue(e.getMessage().contains(client.unstarted.get(0)));
+        }
+        assertEquals(3, task.getProject().getProperties()
+                .get(Constants.INSTANCE_IDS_PROPERTY).toString().split(",").length);
+    }
+
+    private static CreateInstancesTask newTask(AWSOpsWorksClient client) {
+        CreateInstancesTask task = StubClients.setUp(new CreateInstancesTask(),
+                client);
+        task.setStackId("stack");
+        task.setUseProjectLayerIds(false);
+        CreateInstanceTask.LayerId layerId = new CreateInstanceTask.LayerId();
+        layerId.setValue("layer");
+        task.addConfiguredLayerId(layerId);
+        task.setInstancesPerSecond(100);
+        return task;
+    }
+
+    /**
+     * Fails the first few creations and starts, and reports every instance
+     * online.
+     */
+    private static class StubOpsWorksClient extends AWSOpsWorksClient {
+        private final AtomicInteger creates = new AtomicInteger();
+        private final AtomicInteger starts = new AtomicInteger();
+        private final List<String> unstarted = new Vector<String>();
+        private final int failures;
+        private int startFailures;
+
+        StubOpsWorksClient(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public CreateInstanceResult createInstance(CreateInstanceRequest request) {
+            int create = creates.incrementAndGet();
+            if (create <= failures) {
+                throw new AmazonServiceException("Instance limit exceeded " + create);
+            }
+            return new CreateInstanceResult().withInstanceId("i-" + create);
+        }
+
+        @Override
+        public void startInstance(StartInstanceRequest request) {
+            if (starts.incrementAndGet() <= startFailures) {
+                unstarted.add(request.getInstanceId());
+                throw new AmazonServiceException("Insufficient capacity");
+            }
+        }
+
+        @Override
+        public DescribeInstancesResult describeInstances(
+                DescribeInstancesRequest request) {
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String instanceId : request.getInstanceIds()) {
+                instances.add(new Instance().withInstanceId(instanceId)
+                        .withStatus("online"));
+            }
+            return new DescribeInstancesResult().withInstances(instances);
+        }
+    }
+}
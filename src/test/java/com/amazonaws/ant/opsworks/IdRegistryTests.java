@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+public class IdRegistryTests {
+
+    private static final String PROPERTY = Constants.INSTANCE_IDS_PROPERTY;
+
+    @Test
+    public void testIdsAreJoinedInOrder() {
+        Project project = new Project();
+        IdRegistry.add(project, PROPERTY, "a");
+        IdRegistry.add(project, PROPERTY, "b");
+        IdRegistry.add(project, PROPERTY, "c");
+        assertEquals("a,b,c", project.getProperty(PROPERTY));
+        assertEquals("a,b,c", project.replaceProperties("${" + PROPERTY + "}"));
+    }
+
+    @Test
+    public void testPublishSetsTheProperty() {
+        Project project = new Project();
+        IdRegistry.publish(project, PROPERTY);
+        assertNull(project.getProperties().get(PROPERTY));
+        IdRegistry.add(project, PROPERTY, "a");
+        IdRegistry.add(project, PROPERTY, "b");
+        IdRegistry.publish(project, PROPERTY);
+        assertEquals("a,b", project.getProperties().get(PROPERTY));
+        IdRegistry.add(project, PROPERTY, "c");
+        assertEquals("a,b,c", project.getProperty(PROPERTY));
+        IdRegistry.publish(project, PROPERTY);
+        assertEquals("a,b,c", project.getProperties().get(PROPERTY));
+    }
+
+    @Test
+    public void testExistingValueIsKept() {
+        Project project = new Project();
+        project.setProperty(PROPERTY, "x,y");
+        IdRegistry.add(project, PROPERTY, "z");
+        assertEquals("x,y,z", project.getProperty(PROPERTY));
+    }
+
+    @Test
+    public void testPropertiesAreSeparate() {
+        Project project = new Project();
+        IdRegistry.add(project, Constants.LAYER_IDS_PROPERTY, "layer");
+        IdRegistry.add(project, PROPERTY, "instance");
+        assertEquals("layer", project.getProperty(Constants.LAYER_IDS_PROPERTY));
+        assertEquals("instance", project.getProperty(PROPERTY));
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLost() throws InterruptedException {
+        final Project project = new Project();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        IdRegistry.add(project, PROPERTY, thread + "-" + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<String> ids = new HashSet<String>(Arrays.asList(project
+                .getProperty(PROPERTY).split(",")));
+        assertEquals(800, ids.size());
+    }
+}
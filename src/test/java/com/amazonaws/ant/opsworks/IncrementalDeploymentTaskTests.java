@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.Test;
+
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateDeploymentRequest;
+import com.amazonaws.services.opsworks.model.CreateDeploymentResult;
+import com.amazonaws.services.opsworks.model.Deployment;
+import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
+import com.amazonaws.services.opsworks.model.DescribeDeploymentsResult;
+
+public class IncrementalDeploymentTaskTests {
+
+    @Test
+    public void testBatchSize() {
+        IncrementalDeploymentTask.DeploymentGroup group = new IncrementalDeploymentTask.DeploymentGroup();
+        group.setBatchSize(3);
+        assertEquals(3, group.getBatchSize(10));
+
+        group = new IncrementalDeploymentTask.DeploymentGroup();
+        group.setBatchPercent(30);
+        assertEquals(2, group.getBatchSize(5));
+        assertEquals(3, group.getBatchSize(10));
+        group.setBatchPercent(1);
+        assertEquals(1, group.getBatchSize(5));
+        group.setBatchPercent(100);
+        assertEquals(5, group.getBatchSize(5));
+    }
+
+    @Test
+    public void testCheckParams() {
+        IncrementalDeploymentTask.DeploymentGroup group = new IncrementalDeploymentTask.DeploymentGroup();
+        group.setBatchSize(2);
+        group.setBatchPercent(101);
+        group.setMaxFailures(-1);
+        try {
+            group.checkParams();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("either batchSize or batchPercent"));
+            assertTrue(e.getMessage().contains("batchPercent must be from 1 to 100"));
+            assertTrue(e.getMessage().contains("maxFailures cannot be negative"));
+        }
+    }
+
+    @Test
+    public void testRolloutStopsAndRollsBackOnceTooManyFail() {
+        StubOpsWorksClient client = new StubOpsWorksClient("i-3");
+        IncrementalDeploymentTask task = newTask(client, 6, 0);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("1 deployments failed"));
+        }
+        assertEquals(instances("i-1", "i-2", "i-3", "i-4"), client.deployed);
+        assertEquals(instances("i-1", "i-2", "i-4"), client.rolledBack);
+    }
+
+    @Test
+    public void testRolloutToleratesMaxFailures() {
+        StubOpsWorksClient client = new StubOpsWorksClient("i-3");
+        newTask(client, 6, 1).execute();
+        assertEquals(instances("i-1", "i-2", "i-3", "i-4", "i-5", "i-6"), client.deployed);
+        assertTrue(client.rolledBack.isEmpty());
+    }
+
+    private static IncrementalDeploymentTask newTask(
+            AWSOpsWorksClient client, int deployments, int maxFailures) {
+        IncrementalDeploymentTask task = StubClients.setUp(
+                new IncrementalDeploymentTask(), client);
+        IncrementalDeploymentTask.DeploymentGroup group = new IncrementalDeploymentTask.DeploymentGroup();
+        group.setBatchSize(2);
+        group.setMaxFailures(maxFailures);
+        group.setRollbackOnFailure(true);
+        for (int i = 1; i <= deployments; i++) {
+            DeployAppTask deployAppTask = new DeployAppTask();
+            deployAppTask.setProject(task.getProject());
+            deployAppTask.setTaskName("deploy-opsworks-app");
+            deployAppTask.setStackId("stack");
+            deployAppTask.setAppId("app");
+            DeployAppTask.InstanceId instanceId = new DeployAppTask.InstanceId();
+            instanceId.setValue("i-" + i);
+            deployAppTask.addConfiguredInstanceId(instanceId);
+            DeployAppTask.Command command = new DeployAppTask.Command();
+            command.setName("deploy");
+            deployAppTask.addConfiguredCommand(command);
+            group.addTask(deployAppTask);
+        }
+
+        task.addConfiguredDeploymentGroup(group);
+        return task;
+    }
+
+    private static Set<String> instances(String... instanceIds) {
+        return new HashSet<String>(Arrays.asList(instanceIds));
+    }
+
+    /**
+     * Fails the deployments to the given instances, and lets every other
+     * deployment succeed.
+     */
+    private static class StubOpsWorksClient extends AWSOpsWorksClient {
+        private final Set<String> failing;
+        private final AtomicInteger deployments = new AtomicInteger();
+        private final Map<String, String> instanceIds = new ConcurrentHashMap<String, String>();
+        private final Set<String> deployed = new HashSet<String>();
+        private final Set<String> rolledBack = new HashSet<String>();
+
+        StubOpsWorksClient(String... failing) {
+            this.failing = instances(failing);
+        }
+
+        @Override
+        public synchronized CreateDeploymentResult createDeployment(
+                CreateDeploymentRequest request) {
+            String deploymentId = "d-" + deployments.incrementAndGet();
+            String instanceId = request.getInstanceIds().get(0);
+            if ("rollback".equals(request.getCommand().getName())) {
+                rolledBack.add(instanceId);
+            } else {
+                deployed.add(instanceId);
+                instanceIds.put(deploymentId, instanceId);
+            }
+            return new CreateDeploymentResult().withDeploymentId(deploymentId);
+        }
+
+        @Override
+        public DescribeDeploymentsResult describeDeployments(
+                DescribeDeploymentsRequest request) {
+            List<Deployment> described = new ArrayList<Deployment>();
+            for (String deploymentId : request.getDeploymentIds()) {
+                boolean fails = failing.contains(instanceIds.get(deploymentId));
+                described.add(new Deployment().withDeploymentId(deploymentId)
+                        .withStatus(fails ? "failed" : "successful"));
+            }
+            return new DescribeDeploymentsResult().withDeployments(described);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.junit.Test;
+
+import com.amazonaws.ant.BackoffPoller;
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.DescribeInstancesResult;
+import com.amazonaws.services.opsworks.model.Instance;
+import com.amazonaws.services.opsworks.model.ResourceNotFoundException;
+
+public class InstanceStateWaiterTests {
+
+    private static final long TIMEOUT_IN_MS = 10000;
+
+    @Test
+    public void testVisibleInstanceIsReadyInAnyState() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.notFoundPolls = 1;
+        client.addPoll("i-1", "stopped");
+        Set<String> ready = InstanceStateWaiter.waitForInstances(client,
+                ids("i-1"), null, 1, newPoller());
+        assertEquals(ids("i-1"), ready);
+        assertEquals(2, client.requests);
+    }
+
+    @Test
+    public void testFirstPollIsImmediate() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.addPoll("i-1", "requested");
+        long start = System.currentTimeMillis();
+        InstanceStateWaiter.waitForInstances(client, ids("i-1"), null, 1,
+                new BackoffPoller(TIMEOUT_IN_MS));
+        assertTrue(System.currentTimeMillis() - start
+                < BackoffPoller.DEFAULT_INITIAL_DELAY_IN_MS);
+        assertEquals(1, client.requests);
+    }
+
+    @Test
+    public void testInstancePastTheStateHasReachedIt() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.addPoll("i-1", "requested", "i-2", "pending");
+        client.addPoll("i-1", "online", "i-2", "booting");
+        Set<String> ready = InstanceStateWaiter.waitForInstances(client,
+                ids("i-1", "i-2"), "booting", 2, newPoller());
+        assertEquals(ids("i-1", "i-2"), ready);
+    }
+
+    @Test
+    public void testStoppedInstanceFailsFast() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.addPoll("i-1", "stopped");
+        try {
+            InstanceStateWaiter.waitForInstances(client, ids("i-1"), "online",
+                    1, newPoller());
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("i-1"));
+        }
+        assertEquals(1, client.requests);
+    }
+
+    @Test
+    public void testContinuesOnceEnoughInstancesAreReady() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.addPoll("i-1", "online", "i-2", "start_failed", "i-3", "online");
+        Set<String> ready = InstanceStateWaiter.waitForInstances(client,
+                ids("i-1", "i-2", "i-3"), "online", 2, newPoller());
+        assertEquals(ids("i-1", "i-3"), ready);
+    }
+
+    @Test
+    public void testFailsOnceRequiredCountIsOutOfReach() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        client.addPoll("i-1", "setup_failed", "i-2", "booting", "i-3", "terminated");
+        try {
+            InstanceStateWaiter.waitForInstances(client,
+                    ids("i-1", "i-2", "i-3"), "online", 2, newPoller());
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("cannot reach state online"));
+        }
+    }
+
+    @Test
+    public void testDescribesAtMostOneHundredInstancesPerRequest() throws InterruptedException {
+        StubOpsWorksClient client = new StubOpsWorksClient();
+        Set<String> instanceIds = new LinkedHashSet<String>();
+        for (int i = 0; i < 250; i++) {
+            instanceIds.add("i-" + i);
+        }
+        client.allStatus = "online";
+        InstanceStateWaiter.waitForInstances(client, instanceIds, "online",
+                250, newPoller());
+        assertEquals(3, client.requests);
+        assertEquals(100, client.largestRequest);
+    }
+
+    private static BackoffPoller newPoller() {
+        return new BackoffPoller(0, 1, BackoffPoller.MIN_DELAY_IN_MS, 0,
+                TIMEOUT_IN_MS);
+    }
+
+    private static Set<String> ids(String... ids) {
+        return new LinkedHashSet<String>(Arrays.asList(ids));
+    }
+
+    /**
+     * Answers each poll with the next scripted set of statuses, or with the
+     * same status for every instance.
+     */
+    private static class StubOpsWorksClient extends AWSOpsWorksClient {
+        private final StubClients.Responses<List<String>> polls = new StubClients.Responses<List<String>>();
+        private int notFoundPolls;
+        private String allStatus;
+        private int requests;
+        private int largestRequest;
+
+        void addPoll(String... idsAndStatuses) {
+            polls.add(Arrays.asList(idsAndStatuses));
+        }
+
+        @Override
+        public DescribeInstancesResult describeInstances(
+                DescribeInstancesRequest request) {
+            requests++;
+            largestRequest = Math.max(largestRequest, request.getInstanceIds()
+                    .size());
+            if (notFoundPolls > 0) {
+                notFoundPolls--;
+                throw new ResourceNotFoundException("Unable to find instance");
+            }
+            List<Instance> instances = new ArrayList<Instance>();
+            if (allStatus != null) {
+                for (String instanceId : request.getInstanceIds()) {
+                    instances.add(new Instance().withInstanceId(instanceId)
+                            .withStatus(allStatus));
+                }
+            } else {
+                List<String> poll = polls.next();
+                for (int i = 0; i < poll.size(); i += 2) {
+                    if (request.getInstanceIds().contains(poll.get(i))) {
+                        instances.add(new Instance().withInstanceId(
+                                poll.get(i)).withStatus(poll.get(i + 1)));
+                    }
+                }
+            }
+            return new DescribeInstancesResult().withInstances(instances);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.StubClients;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+/**
+ * Runs the download task against a stub S3 client holding a few small
+ * objects.
+ */
+public class DownloadFileFromS3TaskTests {
+
+    private static final String BUCKET_NAME = "bucket";
+    private File dir;
+    private StubS3Client client;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("download", "");
+        dir.delete();
+        dir.mkdirs();
+        client = new StubS3Client();
+    }
+
+    @Test
+    public void testDownloadShortKey() throws IOException {
+        client.objects.put("a", "content of a");
+        DownloadFileFromS3Task task = newTask();
+        task.setKey("a");
+        task.setFile(new File(dir, "a"));
+        task.execute();
+        assertEquals("content of a", FileUtils.readFileToString(new File(dir, "a")));
+    }
+
+    @Test
+    public void testDownloadShortKeysWithPrefix() throws IOException {
+        client.objects.put("x/ab", "content of ab");
+        client.objects.put("x/c", "content of c");
+        DownloadFileFromS3Task task = newTask();
+        task.setKeyPrefix("x/");
+        task.setDir(dir.getPath());
+        task.setThreads(2);
+        task.execute();
+        assertEquals("content of ab", FileUtils.readFileToString(new File(dir, "x/ab")));
+        assertEquals("content of c", FileUtils.readFileToString(new File(dir, "x/c")));
+        assertEquals(1, dir.list().length);
+        assertEquals(2, new File(dir, "x").list().length);
+    }
+
+    @Test
+    public void testKeyOutsideDirIsRejected() throws IOException {
+        client.objects.put("x/../../escaped", "escaped");
+        client.objects.put("x/ok", "ok");
+        File target = new File(dir, "target");
+        DownloadFileFromS3Task task = newTask();
+        task.setKeyPrefix("x/");
+        task.setDir(target.getPath());
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("1 of 2 objects"));
+            assertTrue(e.getMessage().contains("outside"));
+        }
+        assertFalse(new File(dir, "escaped").exists());
+        assertEquals("ok", FileUtils.readFileToString(new File(target, "x/ok")));
+    }
+
+    @Test
+    public void testObjectReplacedDuringDownloadIsFetchedAgain() throws IOException {
+        client.objects.put("a", "old content");
+        client.replacement = "new content";
+        File target = new File(dir, "a");
+        DownloadFileFromS3Task task = newTask();
+        task.setKey("a");
+        task.setFile(target);
+        task.setConnections(2);
+        task.execute();
+        assertEquals("new content", FileUtils.readFileToString(target));
+        assertEquals(2, client.heads);
+    }
+
+    @Test
+    public void testObjectThatKeepsChangingFails() throws IOException {
+        client.objects.put("a", "old content");
+        client.replacement = "new content";
+        client.keepReplacing = true;
+        File target = new File(dir, "a");
+        DownloadFileFromS3Task task = newTask();
+        task.setKey("a");
+        task.setFile(target);
+        task.setConnections(2);
+        try {
+            task.execute();
+            fail();
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("changed during download"));
+        }
+        assertFalse(target.exists());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private DownloadFileFromS3Task newTask() {
+        DownloadFileFromS3Task task = StubClients.setUp(
+                new DownloadFileFromS3Task(), client);
+        task.setBucketName(BUCKET_NAME);
+        return task;
+    }
+
+    /**
+     * Holds objects in memory, keyed and listed in key order. If a
+     * replacement is set, the next object fetched is replaced with it just
+     * before the fetch, as if it had been uploaded again since it was
+     * described.
+     */
+    private static class StubS3Client extends AmazonS3Client {
+        private final Map<String, String> objects = new TreeMap<String, String>();
+        private String replacement;
+        private boolean keepReplacing;
+        private int heads;
+
+        @Override
+        public ObjectListing listObjects(ListObjectsRequest request) {
+            ObjectListing listing = new ObjectListing();
+            for (Map.Entry<String, String> object : objects.entrySet()) {
+                if (object.getKey().startsWith(request.getPrefix())) {
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setBucketName(request.getBucketName());
+                    summary.setKey(object.getKey());
+                    summary.setSize(object.getValue().length());
+                    summary.setETag(eTag(object.getValue()));
+                    listing.getObjectSummaries().add(summary);
+                }
+            }
+            return listing;
+        }
+
+        @Override
+        public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+            heads++;
+            return metadata(objects.get(key));
+        }
+
+        @Override
+        public ObjectMetadata getObject(GetObjectRequest request,
+                File destinationFile) {
+            if (replacement != null) {
+                String replaced = objects.put(request.getKey(), replacement);
+                replacement = keepReplacing ? replaced : null;
+            }
+            String content = objects.get(request.getKey());
+            if (!request.getMatchingETagConstraints().isEmpty()
+                    && !request.getMatchingETagConstraints().contains(eTag(content))) {
+                return null;
+            }
+            if (request.getNonmatchingETagConstraints().contains(eTag(content))) {
+                return null;
+            }
+            try {
+                FileUtils.writeStringToFile(destinationFile, content);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return metadata(content);
+        }
+
+        static ObjectMetadata metadata(String content) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length());
+            metadata.setHeader("ETag", eTag(content));
+            return metadata;
+        }
+
+        static String eTag(String content) {
+            return BinaryUtils.toHex(Md5Utils.computeMD5Hash(content.getBytes()));
+        }
+    }
+}
@@ -39,7 +39,7 @@ public class DownloadFromS3TaskTests {
     private static final String KEY_PREFIX = "deployfilesettos3test/";
     private static final String TESTFILE_SUFFIX = ".txt";
     private static final String USER_DIR = System.getProperty("user.dir");
-    private static final String DIR = USER_DIR + File.pathSeparator
+    private static final String DIR = USER_DIR + File.separator
             + KEY_PREFIX;
     private static File testFile1, testFile2, testFile3;
     private static AmazonS3Client client;
@@ -73,6 +73,37 @@ public class DownloadFromS3TaskTests {
         assertTrue(FileUtils.contentEquals(testFile1, resFile1));
     }
 
+    @Test
+    public void testDownloadSingleFileInRanges() throws IOException {
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(new Project());
+        task.setBucketName(BUCKET_NAME);
+        task.setKey(KEY_PREFIX + testFile1.getName());
+        task.setConnections(4);
+        task.setPartSize(16);
+        resFile1 = File.createTempFile(RES_FILE, TESTFILE_SUFFIX);
+        task.setFile(resFile1);
+        task.execute();
+        assertTrue(FileUtils.contentEquals(testFile1, resFile1));
+    }
+
+    @Test
+    public void testDownloadSkipsUnchangedFile() throws IOException {
+        resFile1 = File.createTempFile(RES_FILE, TESTFILE_SUFFIX);
+        FileUtils.copyFile(testFile1, resFile1);
+        long lastModified = 1000000000000L;
+        resFile1.setLastModified(lastModified);
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(new Project());
+        task.setBucketName(BUCKET_NAME);
+        task.setKey(KEY_PREFIX + testFile1.getName());
+        task.setFile(resFile1);
+        task.setSkipUnchanged(true);
+        task.execute();
+        assertEquals(lastModified, resFile1.lastModified());
+        assertTrue(FileUtils.contentEquals(testFile1, resFile1));
+    }
+
     @Test
     public void testDownloadFilesWithPrefix() throws IOException {
         DownloadFileFromS3Task task = new DownloadFileFromS3Task();
@@ -89,6 +120,28 @@ public class DownloadFromS3TaskTests {
         assertTrue(FileUtils.contentEquals(testFile3, resFile3));
     }
 
+    @Test
+    public void testDownloadFilesWithPrefixInParallel() throws IOException {
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(new Project());
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(KEY_PREFIX);
+        task.setDir(USER_DIR);
+        task.setThreads(3);
+        resFile1 = new File(DIR + testFile1.getName());
+        resFile2 = new File(DIR + testFile2.getName());
+        resFile3 = new File(DIR + testFile3.getName());
+        task.execute();
+        assertEquals(new File(USER_DIR, KEY_PREFIX).getAbsoluteFile(),
+                resFile1.getAbsoluteFile().getParentFile());
+        assertTrue(resFile1.isFile());
+        assertFalse(new File(USER_DIR + File.pathSeparator + KEY_PREFIX
+                + testFile1.getName()).exists());
+        assertTrue(FileUtils.contentEquals(testFile1, resFile1));
+        assertTrue(FileUtils.contentEquals(testFile2, resFile2));
+        assertTrue(FileUtils.contentEquals(testFile3, resFile3));
+    }
+
     @After
     public void tearDown() throws IOException {
         if (resFile1 != null) {
@@ -19,6 +19,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Date;
 
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
@@ -105,6 +106,31 @@ public class UploadFileSetToS3TaskTests {
         assertTrue(FileUtils.contentEquals(testFile1, resFile1));
     }
 
+    @Test
+    public void testSyncSkipsUnchangedFiles() throws IOException {
+        UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+        task.setProject(new Project());
+        FileSet fileset = new FileSet();
+        fileset.setDir(testFile2.getParentFile());
+        fileset.setFile(testFile2);
+        task.addFileset(fileset);
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(KEY_PREFIX);
+        task.execute();
+        Date firstUpload = client.getObjectMetadata(BUCKET_NAME,
+                KEY_PREFIX + fileName2).getLastModified();
+
+        UploadFileSetToS3Task syncTask = new UploadFileSetToS3Task();
+        syncTask.setProject(new Project());
+        syncTask.addFileset(fileset);
+        syncTask.setBucketName(BUCKET_NAME);
+        syncTask.setKeyPrefix(KEY_PREFIX);
+        syncTask.setSync(true);
+        syncTask.execute();
+        assertEquals(firstUpload, client.getObjectMetadata(BUCKET_NAME,
+                KEY_PREFIX + fileName2).getLastModified());
+    }
+
     @After
     public void tearDown() {
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSTestUtils;
+
+public class UploadManifestTests {
+
+    private static final String BUCKET_NAME = "manifesttestbucket";
+    private File manifestFile;
+    private File testFile;
+    private Task task;
+    private List<String> warnings;
+
+    @Before
+    public void setUp() throws IOException {
+        manifestFile = File.createTempFile("manifest", ".bin");
+        manifestFile.delete();
+        testFile = AWSTestUtils.createRandomFile("test", ".txt");
+        warnings = new ArrayList<String>();
+        Project project = new Project();
+        project.addBuildListener(new DefaultLogger() {
+            @Override
+            public void messageLogged(BuildEvent event) {
+                if (event.getPriority() == Project.MSG_WARN) {
+                    warnings.add(event.getMessage());
+                }
+            }
+        });
+        task = new UploadFileSetToS3Task();
+        task.setProject(project);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        UploadManifest manifest = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        manifest.put("a", testFile, "md5a", "etaga");
+        manifest.save();
+
+        UploadManifest reloaded = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        assertEquals("etaga", reloaded.get("a").getETag());
+        assertEquals("md5a", reloaded.get("a").getContentMd5());
+        assertTrue(reloaded.get("a").matches(testFile));
+    }
+
+    @Test
+    public void testTruncatedRecordIsDroppedOnSave() throws IOException {
+        UploadManifest manifest = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        manifest.put("a", testFile, "md5a", "etaga");
+        manifest.save();
+        manifest.put("b", testFile, "md5b", "etagb");
+        manifest.save();
+        truncate(manifestFile, 5);
+
+        UploadManifest truncated = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        assertNotNull(truncated.get("a"));
+        assertNull(truncated.get("b"));
+        truncated.put("c", testFile, "md5c", "etagc");
+        truncated.save();
+
+        UploadManifest reloaded = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        assertEquals("etaga", reloaded.get("a").getETag());
+        assertNull(reloaded.get("b"));
+        assertEquals("etagc", reloaded.get("c").getETag());
+    }
+
+    @Test
+    public void testUnreadableManifestIsTreatedAsEmpty() throws IOException {
+        UploadManifest manifest = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        manifest.put("a", testFile, "md5a", "etaga");
+        manifest.save();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                manifestFile, true));
+        out.writeShort(2);
+        out.write(new byte[] { (byte) 0xff, (byte) 0xff });
+        out.close();
+
+        UploadManifest unreadable = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        assertNull(unreadable.get("a"));
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).contains("Ignoring unreadable manifest"));
+        unreadable.put("b", testFile, "md5b", "etagb");
+        unreadable.save();
+
+        UploadManifest reloaded = UploadManifest.load(manifestFile, BUCKET_NAME, task);
+        assertNull(reloaded.get("a"));
+        assertEquals("etagb", reloaded.get("b").getETag());
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        manifestFile.delete();
+        testFile.delete();
+    }
+}